@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.prospectivesearch.FieldType;
+import com.google.cloud.backend.beans.FilterDto.Op;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+/**
+ * Immutable, typed form of a {@link FilterDto} tree.
+ *
+ * Operands are parsed once when the tree is compiled: JSON date strings become {@link Date}s and
+ * every operand gets its Prospective Search {@link FieldType}. The Datastore filter, the
+ * Prospective Search query and its schema are all generated from the compiled tree. Compiled trees
+ * are cached by the canonical form of the {@link FilterDto} they were compiled from.
+ *
+ * A compiled tree can also be evaluated in memory against an {@link Entity} or an
+ * {@link EntityDto}, without Datastore.
+ */
+public final class CompiledFilter {
+
+  static final int MAX_CACHED_FILTERS = 1000;
+
+  private static final DatatypeFactory datatypeFactory;
+
+  static {
+    try {
+      datatypeFactory = DatatypeFactory.newInstance();
+    } catch (DatatypeConfigurationException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static final Map<String, CompiledFilter> cache =
+      new LinkedHashMap<String, CompiledFilter>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CompiledFilter> eldest) {
+      return size() > MAX_CACHED_FILTERS;
+    }
+  };
+
+  private final Op operator;
+
+  // property name of a filter predicate
+  private final String propName;
+
+  // operands of a filter predicate as received, and parsed
+  private final List<Object> rawOperands;
+
+  private final List<Object> operands;
+
+  private final List<FieldType> fieldTypes;
+
+  // subfilters of AND and OR
+  private final List<CompiledFilter> subfilters;
+
+  private final Filter datastoreFilter;
+
+  private final String prosSearchQuery;
+
+  private final Map<String, FieldType> prosSearchSchema;
+
+  /**
+   * Returns the compiled form of the specified {@link FilterDto} tree, from the cache if the same
+   * tree has been compiled before. As {@link FilterDto}s are mutable, the cache is looked up by
+   * the current canonical form of the tree on every call.
+   */
+  public static CompiledFilter compile(FilterDto filter) {
+    String canonicalForm = toCanonicalForm(filter);
+    synchronized (cache) {
+      CompiledFilter cf = cache.get(canonicalForm);
+      if (cf != null) {
+        return cf;
+      }
+    }
+    CompiledFilter cf = new CompiledFilter(filter);
+    synchronized (cache) {
+      cache.put(canonicalForm, cf);
+    }
+    return cf;
+  }
+
+  /**
+   * Appends the type-tagged, length-prefixed form of a value to a canonical form, so that the
+   * forms of different values never run into each other.
+   */
+  public static void appendCanonicalValue(StringBuilder sb, Object value) {
+    String type = value == null ? "null" : value.getClass().getName();
+    String s = String.valueOf(value);
+    sb.append(type).append(':').append(s.length()).append(':').append(s);
+  }
+
+  // operator and type-tagged values of the whole tree
+  private static String toCanonicalForm(FilterDto filter) {
+    StringBuilder sb = new StringBuilder();
+    appendCanonicalForm(sb, filter);
+    return sb.toString();
+  }
+
+  private static void appendCanonicalForm(StringBuilder sb, FilterDto filter) {
+    sb.append(filter.getOperator()).append('(');
+    if (filter.getValues() != null) {
+      for (Object value : filter.getValues()) {
+        appendCanonicalValue(sb, value);
+        sb.append(',');
+      }
+    }
+    if (filter.getSubfilters() != null) {
+      for (FilterDto subfilter : filter.getSubfilters()) {
+        appendCanonicalForm(sb, subfilter);
+        sb.append(',');
+      }
+    }
+    sb.append(')');
+  }
+
+  private CompiledFilter(FilterDto filter) {
+    this.operator = filter.getOperator();
+    if (operator == Op.AND || operator == Op.OR) {
+      List<CompiledFilter> l = new ArrayList<CompiledFilter>();
+      for (FilterDto subfilter : filter.getSubfilters()) {
+        l.add(new CompiledFilter(subfilter));
+      }
+      this.propName = null;
+      this.rawOperands = Collections.emptyList();
+      this.operands = Collections.emptyList();
+      this.fieldTypes = Collections.emptyList();
+      this.subfilters = Collections.unmodifiableList(l);
+    } else {
+      List<Object> values = filter.getValues();
+
+      // nested paths are filtered on their shadow properties, whose values are normalized
+      String name = (String) values.get(0);
+      List<Object> raw = new ArrayList<Object>(values.subList(1, values.size()));
+      if (EntityDto.isNestedPath(name)) {
+        for (int i = 0; i < raw.size(); i++) {
+          raw.set(i, EntityPropertyCodec.normalizePathValue(raw.get(i)));
+        }
+      }
+      List<Object> parsed = new ArrayList<Object>();
+      List<FieldType> types = new ArrayList<FieldType>();
+      for (Object value : raw) {
+        Date date = parseJSONDate(value);
+        parsed.add(date == null ? value : date);
+        types.add(date == null ? detectFieldType(value) : FieldType.DOUBLE);
+      }
+      this.propName = name;
+      this.rawOperands = Collections.unmodifiableList(raw);
+      this.operands = Collections.unmodifiableList(parsed);
+      this.fieldTypes = Collections.unmodifiableList(types);
+      this.subfilters = Collections.emptyList();
+    }
+    this.datastoreFilter = buildDatastoreFilter();
+    this.prosSearchQuery = buildProsSearchQuery();
+    this.prosSearchSchema = Collections.unmodifiableMap(buildProsSearchSchema());
+  }
+
+  public Op getOperator() {
+    return operator;
+  }
+
+  /**
+   * Returns the property name of a filter predicate, or null for AND and OR. The property name of
+   * a nested path is the name of its shadow property.
+   */
+  public String getPropName() {
+    return propName;
+  }
+
+  /**
+   * Returns the operands of a filter predicate, with JSON date strings parsed to {@link Date}s.
+   */
+  public List<Object> getOperands() {
+    return operands;
+  }
+
+  /**
+   * Returns the operands of a filter predicate as received.
+   */
+  public List<Object> getRawOperands() {
+    return rawOperands;
+  }
+
+  /**
+   * Returns the subfilters of AND and OR.
+   */
+  public List<CompiledFilter> getSubfilters() {
+    return subfilters;
+  }
+
+  /**
+   * Returns the Datastore {@link Filter} for this filter.
+   */
+  public Filter getDatastoreFilter() {
+    return datastoreFilter;
+  }
+
+  /**
+   * Returns the Prospective Search query string for this filter.
+   */
+  public String getProsSearchQuery() {
+    return prosSearchQuery;
+  }
+
+  /**
+   * Returns the Prospective Search schema for the properties in this filter.
+   */
+  public Map<String, FieldType> getProsSearchSchema() {
+    return prosSearchSchema;
+  }
+
+  /**
+   * Returns true if the specified {@link Entity} satisfies this filter.
+   *
+   * Filters are evaluated the way Datastore evaluates them: a filter on a property never matches
+   * an entity without the property, and a filter on a multi-valued property matches if any of its
+   * values matches. Values are ordered as Datastore orders them: by type class first (null,
+   * integers and dates, booleans, strings, doubles, geographical points, users, keys), and by
+   * value within a class, with dates as microseconds. So an equality never matches a value of
+   * another class, while inequalities and NE do, by the order of the classes.
+   */
+  public boolean matches(final Entity e) {
+    return evaluate(new PropertyLookup() {
+      @Override
+      boolean has(String name) {
+        return e.hasProperty(name);
+      }
+
+      @Override
+      Object get(String name) {
+        return e.getProperty(name);
+      }
+    });
+  }
+
+  /**
+   * Returns true if the specified {@link EntityDto} satisfies this filter. See
+   * {@link #matches(Entity)}.
+   */
+  public boolean matches(final EntityDto cd) {
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> props = cd.getProperties() instanceof Map ? (Map<String, Object>) cd
+        .getProperties() : Collections.<String, Object> emptyMap();
+    return evaluate(new PropertyLookup() {
+      @Override
+      boolean has(String name) {
+        if (name.startsWith(EntityDto.PROP_INDEXED_PREFIX_PATH)) {
+          return !((List<?>) get(name)).isEmpty();
+        }
+        return props.containsKey(name) || get(name) != null;
+      }
+
+      @Override
+      Object get(String name) {
+        if (name.startsWith(EntityDto.PROP_INDEXED_PREFIX_PATH)) {
+          return EntityPropertyCodec.extractPathValues(props,
+              name.substring(EntityDto.PROP_INDEXED_PREFIX_PATH.length()));
+        } else if (EntityDto.PROP_CREATED_AT.equals(name)) {
+          return cd.getCreatedAt();
+        } else if (EntityDto.PROP_UPDATED_AT.equals(name)) {
+          return cd.getUpdatedAt();
+        } else if (EntityDto.PROP_CREATED_BY.equals(name)) {
+          return cd.getCreatedBy();
+        } else if (EntityDto.PROP_UPDATED_BY.equals(name)) {
+          return cd.getUpdatedBy();
+        } else if (EntityDto.PROP_OWNER.equals(name)) {
+          return cd.getOwner();
+        } else if (EntityDto.PROP_KIND_NAME.equals(name)) {
+          return cd.getKindName();
+        }
+        return props.get(name);
+      }
+    });
+  }
+
+  /**
+   * Returns true if a single value of the property of this filter predicate satisfies it.
+   */
+  public boolean matchesValue(Object value) {
+    return evaluatePredicate(value);
+  }
+
+  // reads the property values of an Entity or an EntityDto
+  private abstract static class PropertyLookup {
+    abstract boolean has(String name);
+
+    abstract Object get(String name);
+  }
+
+  private boolean evaluate(PropertyLookup lookup) {
+    switch (operator) {
+    case AND:
+      for (CompiledFilter subfilter : subfilters) {
+        if (!subfilter.evaluate(lookup)) {
+          return false;
+        }
+      }
+      return true;
+    case OR:
+      for (CompiledFilter subfilter : subfilters) {
+        if (subfilter.evaluate(lookup)) {
+          return true;
+        }
+      }
+      return false;
+    default:
+      if (!lookup.has(propName)) {
+        return false;
+      }
+      Object value = lookup.get(propName);
+      if (value instanceof Collection) {
+        for (Object v : (Collection<?>) value) {
+          if (evaluatePredicate(v)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return evaluatePredicate(value);
+    }
+  }
+
+  // evaluates a filter predicate on a single value
+  private boolean evaluatePredicate(Object value) {
+    if (operator == Op.IN) {
+      for (Object operand : rawOperands) {
+        Integer c = compareValues(value, operand);
+        if (c != null && c == 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+    Integer c = compareValues(value, operands.get(0));
+    if (c == null) {
+      return false;
+    }
+    switch (operator) {
+    case EQ:
+      return c == 0;
+    case LT:
+      return c < 0;
+    case LE:
+      return c <= 0;
+    case GT:
+      return c > 0;
+    case GE:
+      return c >= 0;
+    case NE:
+      return c != 0;
+    default:
+      return false;
+    }
+  }
+
+  // returns null if the values can't be compared, as values of the types that can't be indexed
+  // never match; otherwise values are ordered as Datastore orders them
+  private static Integer compareValues(Object a, Object b) {
+    int unindexed = PropertyValueComparator.TYPE_CLASS_UNINDEXED;
+    if (PropertyValueComparator.getTypeClass(a) == unindexed
+        || PropertyValueComparator.getTypeClass(b) == unindexed) {
+      return null;
+    }
+    return PropertyValueComparator.INSTANCE.compare(a, b);
+  }
+
+  private Filter buildDatastoreFilter() {
+    switch (operator) {
+    case EQ:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.EQUAL, operands.get(0));
+    case LT:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.LESS_THAN, operands.get(0));
+    case LE:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.LESS_THAN_OR_EQUAL,
+          operands.get(0));
+    case GT:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.GREATER_THAN,
+          operands.get(0));
+    case GE:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.GREATER_THAN_OR_EQUAL,
+          operands.get(0));
+    case NE:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.NOT_EQUAL, operands.get(0));
+    case IN:
+      return new Query.FilterPredicate(propName, Query.FilterOperator.IN, rawOperands);
+    case AND:
+    case OR:
+      List<Filter> l = new ArrayList<Filter>();
+      for (CompiledFilter subfilter : subfilters) {
+        l.add(subfilter.getDatastoreFilter());
+      }
+      return new Query.CompositeFilter(operator == Op.AND ? CompositeFilterOperator.AND
+          : CompositeFilterOperator.OR, l);
+    }
+    return null;
+  }
+
+  private String buildProsSearchQuery() {
+    switch (operator) {
+    case EQ:
+      return "( " + propName + " : " + getOperandString(0) + ")";
+    case LT:
+      return "( " + propName + " < " + getOperandString(0) + " )";
+    case LE:
+      return "( " + propName + " <= " + getOperandString(0) + " )";
+    case GT:
+      return "( " + propName + " > " + getOperandString(0) + " )";
+    case GE:
+      return "( " + propName + " >= " + getOperandString(0) + " )";
+    case NE:
+      return "(NOT " + propName + " : " + getOperandString(0) + ")";
+    case IN:
+      StringBuilder sb = new StringBuilder();
+      sb.append("(");
+      for (int i = 0; i < operands.size(); i++) {
+        sb.append("(" + propName + " : " + getOperandString(i) + " )");
+        if (i != operands.size() - 1) {
+          sb.append(" OR ");
+        }
+      }
+      sb.append(")");
+      return sb.toString();
+    case AND:
+    case OR:
+      StringBuilder sb2 = new StringBuilder();
+      sb2.append("(");
+      for (int i = 0; i < subfilters.size(); i++) {
+        sb2.append(subfilters.get(i).getProsSearchQuery());
+        if (i != subfilters.size() - 1) {
+          sb2.append(" " + operator + " ");
+        }
+      }
+      sb2.append(")");
+      return sb2.toString();
+    }
+    return null;
+  }
+
+  // dates as epoch time, strings quoted
+  private String getOperandString(int i) {
+    Object operand = operands.get(i);
+    if (operand instanceof Date) {
+      return String.valueOf(((Date) operand).getTime());
+    }
+    String s = String.valueOf(operand);
+    FieldType ft = fieldTypes.get(i);
+    if (ft == FieldType.STRING || ft == FieldType.TEXT) {
+      s = "\"" + s + "\"";
+    }
+    return s;
+  }
+
+  private Map<String, FieldType> buildProsSearchSchema() {
+    Map<String, FieldType> schema = new HashMap<String, FieldType>();
+    switch (operator) {
+    case EQ:
+    case LT:
+    case LE:
+    case GT:
+    case GE:
+    case NE:
+      schema.put(propName, fieldTypes.get(0));
+      break;
+    case IN: // IN supports only String
+      schema.put(propName, FieldType.STRING);
+      break;
+    case AND:
+    case OR:
+      for (CompiledFilter subfilter : subfilters) {
+        schema.putAll(subfilter.getProsSearchSchema());
+      }
+      break;
+    }
+    return schema;
+  }
+
+  private static FieldType detectFieldType(Object value) {
+    if (value instanceof Boolean) {
+      return FieldType.BOOLEAN;
+    } else if (value instanceof Number) {
+      if (value instanceof Integer) {
+        return FieldType.INT32;
+      } else {
+        return FieldType.DOUBLE;
+      }
+    } else {
+      return FieldType.STRING;
+    }
+  }
+
+  // returns null if the value is not a JSON date string
+  static Date parseJSONDate(Object value) {
+    if (!(value instanceof String) || !mayBeJSONDate((String) value)) {
+      return null;
+    }
+    try {
+      return datatypeFactory.newXMLGregorianCalendar((String) value).toGregorianCalendar()
+          .getTime();
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  // fast check if s could be a JSON date time: a digit, one or more chars, and a digit or 'Z'
+  private static boolean mayBeJSONDate(String s) {
+    if (s.length() < 3 || !isDigit(s.charAt(0))) {
+      return false;
+    }
+    char last = s.charAt(s.length() - 1);
+    return last == 'Z' || isDigit(last);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  @Override
+  public String toString() {
+    return "CompiledFilter: " + prosSearchQuery;
+  }
+}
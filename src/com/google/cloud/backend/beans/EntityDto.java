@@ -15,27 +15,28 @@ package com.google.cloud.backend.beans;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.users.User;
 import com.google.cloud.backend.spi.SecurityChecker;
-import com.google.gson.Gson;
 
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A JavaBeans container for CloudEntity.
  */
 public class EntityDto {
 
-  private static final Gson GSON = new Gson();
-
   public static final String PROP_UNINDEXED_PREFIX_MAP = "_map_";
 
   public static final String PROP_UNINDEXED_PREFIX_LIST = "_list_";
 
+  /**
+   * Prefix of the indexed shadow properties that hold the values at nested paths of Map and List
+   * properties, such as "_path_address.city" or "_path_tags[]".
+   */
+  public static final String PROP_INDEXED_PREFIX_PATH = "_path_";
+
   public static final String PROP_UPDATED_BY = "_updatedBy";
 
   public static final String PROP_UPDATED_AT = "_updatedAt";
@@ -86,34 +87,7 @@ public class EntityDto {
     cd.setOwner((String) e.getProperty(PROP_OWNER));
 
     // set properties
-    Map<String, Object> values = new HashMap<String, Object>();
-    Map<String, Object> props = e.getProperties();
-    for (String propName : props.keySet()) {
-
-      // if the propName starts with "_map:", decode it as a Map
-      if (propName.startsWith(PROP_UNINDEXED_PREFIX_MAP)) {
-        Text t = (Text) props.get(propName);
-        Object v = GSON.fromJson(t.getValue(), Map.class);
-        String origPropName = propName.replaceAll(PROP_UNINDEXED_PREFIX_MAP, "");
-        values.put(origPropName, v);
-        continue;
-      }
-
-      // if the propName starts with "_list:", decode it as a List
-      if (propName.startsWith(PROP_UNINDEXED_PREFIX_LIST)) {
-        Text t = (Text) props.get(propName);
-        Object v = GSON.fromJson(t.getValue(), List.class);
-        String origPropName = propName.replaceAll(PROP_UNINDEXED_PREFIX_LIST, "");
-        values.put(origPropName, v);
-        continue;
-      }
-
-      // if it's an user prop (does not start with "_"), add it to the map
-      if (!propName.startsWith("_")) {
-        values.put(propName, props.get(propName));
-      }
-    }
-    cd.setProperties(values);
+    cd.setProperties(EntityPropertyCodec.decode(e));
     return cd;
   }
 
@@ -139,8 +113,23 @@ public class EntityDto {
    * 
    * @param e
    */
-  @SuppressWarnings("rawtypes")
   public void copyPropValuesToEntity(Entity e) {
+    copyPropValuesToEntity(e, null, null);
+  }
+
+  /**
+   * Copies all the property values from this {@link EntityDto} to the specified
+   * {@link Entity}, indexing only the specified user properties and nested paths.
+   * 
+   * @param e
+   * @param indexedProperties
+   *          names of the user properties to index, or null to index all of them.
+   * @param indexedPaths
+   *          nested paths of Map and List properties to index, or null to index none.
+   */
+  @SuppressWarnings("rawtypes")
+  public void copyPropValuesToEntity(Entity e, Set<String> indexedProperties,
+      Set<String> indexedPaths) {
 
     // set meta data
     e.setProperty(PROP_CREATED_AT, this.getCreatedAt());
@@ -151,25 +140,16 @@ public class EntityDto {
     e.setProperty(PROP_OWNER, this.getOwner());
 
     // set property properties
-    Map values = (Map) this.getProperties();
-    for (Object key : values.keySet()) {
-
-      // get property name and value
-      String propName = (String) key;
-      Object val = values.get(key);
-
-      // if the value is List/Map, encode it to JSON and store as Text
-      // Otherwise, store it as is
-      if (val instanceof Map) {
-        Text t = new Text(GSON.toJson(val));
-        e.setUnindexedProperty(PROP_UNINDEXED_PREFIX_MAP + propName, t);
-      } else if (val instanceof List) {
-        Text t = new Text(GSON.toJson(val));
-        e.setUnindexedProperty(PROP_UNINDEXED_PREFIX_LIST + propName, t);
-      } else {
-        e.setProperty(propName, val);
-      }
-    }
+    EntityPropertyCodec.encode((Map) this.getProperties(), e, indexedProperties);
+    EntityPropertyCodec.setPathProperties((Map) this.getProperties(), e, indexedPaths);
+  }
+
+  /**
+   * Returns true if the specified property name is the shadow property of a nested path of a Map
+   * or List property, such as "_path_address.city" or "_path_tags[]".
+   */
+  public static boolean isNestedPath(String propName) {
+    return propName.startsWith(PROP_INDEXED_PREFIX_PATH);
   }
 
   public String getId() {
@@ -238,13 +218,13 @@ public class EntityDto {
 
   @Override
   public String toString() {
-    return "EntityDto(" + this.getKindName() + "/" + this.getId() + "): " + properties;
+    return "EntityDto(" + this.getKindName() + "/" + this.getId() + "): " + this.getProperties();
   }
 
   @Override
   public int hashCode() {
     String s = "" + this.id + this.kindName + this.createdAt + this.createdBy + this.updatedAt
-        + this.updatedBy + this.properties.toString() + this.owner;
+        + this.updatedBy + this.getProperties().toString() + this.owner;
     return s.hashCode();
   }
 
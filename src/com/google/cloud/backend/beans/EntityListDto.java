@@ -26,6 +26,10 @@ public class EntityListDto {
 
   private List<EntityDto> entries = new LinkedList<EntityDto>();
 
+  private List<String> failedIds;
+
+  private String nextCursor;
+
   public List<EntityDto> getEntries() {
     return entries;
   }
@@ -34,6 +38,43 @@ public class EntityListDto {
     this.entries = entries;
   }
 
+  /**
+   * Returns the Ids of the {@link EntityDto}s that could not be saved, or null
+   * if all of them have been saved.
+   */
+  public List<String> getFailedIds() {
+    return failedIds;
+  }
+
+  public void setFailedIds(List<String> failedIds) {
+    this.failedIds = failedIds;
+  }
+
+  /**
+   * Adds the specified Id to the list of Ids that could not be saved.
+   *
+   * @param id
+   *          Id of the {@link EntityDto} that could not be saved.
+   */
+  public void addFailedId(String id) {
+    if (this.failedIds == null) {
+      this.failedIds = new LinkedList<String>();
+    }
+    this.failedIds.add(id);
+  }
+
+  /**
+   * Returns the web-safe cursor to pass as {@link QueryDto#setStartCursor(String)} to get the next
+   * page of a query, or null if there are no more results.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  public void setNextCursor(String nextCursor) {
+    this.nextCursor = nextCursor;
+  }
+
   /**
    * Returns a List of Ids of all {@link EntityDto}s.
    * 
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Converts user properties of CloudEntities between their {@link EntityDto} form and the form they
+ * are stored in on Datastore {@link Entity}s.
+ *
+ * Map and List values are stored as unindexed JSON {@link Text} under a prefixed property name,
+ * or as a deflated {@link Blob} if the JSON is large.
+ * Other values are indexed, unless the kind is configured to index only some of its properties.
+ * Configured nested paths of Map and List values are also stored as indexed shadow properties, so
+ * that queries can filter on them; they are never read back, as the JSON holds the whole value.
+ * The JSON is decoded when an entity is read, as Cloud Endpoints serializes the properties of an
+ * {@link EntityDto} through its getter.
+ */
+final class EntityPropertyCodec {
+
+  private static final Gson GSON = new Gson();
+
+  /**
+   * JSON values longer than this number of characters are stored compressed.
+   */
+  static final int COMPRESSION_THRESHOLD_CHARS = 4 * 1024;
+
+  // first bytes of a compressed value
+  private static final byte[] COMPRESSED_MARKER = { 'D', 'F', 'L', '1' };
+
+  // number of compressed values between two compression ratio reports
+  private static final int REPORT_INTERVAL = 100;
+
+  private static final Logger log = Logger.getLogger(EntityPropertyCodec.class.getName());
+
+  private static final AtomicLong compressedCount = new AtomicLong();
+
+  private static final AtomicLong totalRawBytes = new AtomicLong();
+
+  private static final AtomicLong totalCompressedBytes = new AtomicLong();
+
+  private EntityPropertyCodec() {
+  }
+
+  /**
+   * Decodes the user properties of the specified {@link Entity}.
+   *
+   * @param e
+   *          {@link Entity} to read the properties from.
+   * @return {@link Map} of the original property names and values.
+   */
+  static Map<String, Object> decode(Entity e) {
+    Map<String, Object> props = e.getProperties();
+    Map<String, Object> values = new HashMap<String, Object>(props.size());
+    for (Map.Entry<String, Object> prop : props.entrySet()) {
+      String propName = prop.getKey();
+
+      // if the propName starts with "_map_", decode it as a Map
+      if (propName.startsWith(EntityDto.PROP_UNINDEXED_PREFIX_MAP)) {
+        values.put(propName.substring(EntityDto.PROP_UNINDEXED_PREFIX_MAP.length()),
+            GSON.fromJson(readJson(prop.getValue()), Map.class));
+        continue;
+      }
+
+      // if the propName starts with "_list_", decode it as a List
+      if (propName.startsWith(EntityDto.PROP_UNINDEXED_PREFIX_LIST)) {
+        values.put(propName.substring(EntityDto.PROP_UNINDEXED_PREFIX_LIST.length()),
+            GSON.fromJson(readJson(prop.getValue()), List.class));
+        continue;
+      }
+
+      // if it's an user prop (does not start with "_"), add it as is
+      if (!propName.startsWith("_")) {
+        values.put(propName, prop.getValue());
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Encodes the specified property values and sets them on the specified {@link Entity}.
+   *
+   * @param values
+   *          {@link Map} of property names and values.
+   * @param e
+   *          {@link Entity} to set the properties on.
+   * @param indexedProperties
+   *          names of the properties to index, or null to index all of them.
+   */
+  @SuppressWarnings("rawtypes")
+  static void encode(Map values, Entity e, Set<String> indexedProperties) {
+    for (Object key : values.keySet()) {
+
+      // get property name and value
+      String propName = (String) key;
+      Object val = values.get(key);
+
+      // if the value is List/Map, encode it to JSON and store as Text, or as a compressed Blob if
+      // it is large. Otherwise, store it as is
+      if (val instanceof Map) {
+        e.setUnindexedProperty(EntityDto.PROP_UNINDEXED_PREFIX_MAP + propName,
+            writeJson(GSON.toJson(val)));
+      } else if (val instanceof List) {
+        e.setUnindexedProperty(EntityDto.PROP_UNINDEXED_PREFIX_LIST + propName,
+            writeJson(GSON.toJson(val)));
+      } else {
+        setProperty(e, propName, val, indexedProperties);
+      }
+    }
+  }
+
+  /**
+   * Replaces the shadow properties of the specified {@link Entity} with the values at the
+   * specified nested paths of the specified property values. Each shadow property is indexed and
+   * holds all the scalar values found at its path, e.g. one value per element for "tags[]".
+   *
+   * @param values
+   *          {@link Map} of property names and values, or null to only remove the shadow
+   *          properties.
+   * @param e
+   *          {@link Entity} to set the shadow properties on.
+   * @param indexedPaths
+   *          nested paths to index, or null.
+   */
+  @SuppressWarnings("rawtypes")
+  static void setPathProperties(Map values, Entity e, Set<String> indexedPaths) {
+    for (String propName : new ArrayList<String>(e.getProperties().keySet())) {
+      if (propName.startsWith(EntityDto.PROP_INDEXED_PREFIX_PATH)) {
+        e.removeProperty(propName);
+      }
+    }
+    if (values == null || indexedPaths == null) {
+      return;
+    }
+    for (String path : indexedPaths) {
+      List<Object> pathValues = extractPathValues(values, path);
+      if (!pathValues.isEmpty()) {
+        e.setProperty(EntityDto.PROP_INDEXED_PREFIX_PATH + path, pathValues);
+      }
+    }
+  }
+
+  /**
+   * Returns the scalar values at the specified nested path of the specified property values. A
+   * path is a list of property names separated by ".", where "[]" after a name stands for each
+   * element of a List, e.g. "address.city", "tags[]" or "items[].name".
+   */
+  @SuppressWarnings("rawtypes")
+  static List<Object> extractPathValues(Map values, String path) {
+    List<Object> current = new ArrayList<Object>();
+    current.add(values);
+    for (String segment : path.split("\\.")) {
+      boolean isEach = segment.endsWith("[]");
+      String name = isEach ? segment.substring(0, segment.length() - 2) : segment;
+      List<Object> next = new ArrayList<Object>();
+      for (Object value : current) {
+        if (!(value instanceof Map) || ((Map) value).get(name) == null) {
+          continue;
+        }
+        Object child = ((Map) value).get(name);
+        if (!isEach) {
+          next.add(child);
+        } else if (child instanceof List) {
+          next.addAll((List) child);
+        }
+      }
+      current = next;
+    }
+
+    List<Object> scalars = new ArrayList<Object>();
+    for (Object value : current) {
+      if (value != null && !(value instanceof Map) && !(value instanceof List)) {
+        scalars.add(normalizePathValue(value));
+      }
+    }
+    return scalars;
+  }
+
+  /**
+   * Returns the value that is indexed for a value at a nested path. Numbers decoded from JSON are
+   * always doubles, so whole numbers are indexed as longs whether or not they have been decoded.
+   */
+  static Object normalizePathValue(Object value) {
+    if (value instanceof Number) {
+      double d = ((Number) value).doubleValue();
+      if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < (double) Long.MAX_VALUE) {
+        return (long) d;
+      }
+      return d;
+    }
+    return value;
+  }
+
+  /**
+   * Returns the stored form of the specified JSON: a {@link Text}, or a {@link Blob} of
+   * {@link #COMPRESSED_MARKER} followed by the deflated UTF-8 bytes if the JSON is longer than
+   * {@link #COMPRESSION_THRESHOLD_CHARS} and compresses to fewer bytes.
+   */
+  static Object writeJson(String json) {
+    if (json.length() <= COMPRESSION_THRESHOLD_CHARS) {
+      return new Text(json);
+    }
+    try {
+      byte[] raw = json.getBytes("UTF-8");
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4);
+      out.write(COMPRESSED_MARKER);
+      DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+      deflater.write(raw);
+      deflater.close();
+      if (out.size() >= raw.length) {
+        return new Text(json);
+      }
+      countCompression(raw.length, out.size());
+      return new Blob(out.toByteArray());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the JSON of a value stored by {@link #writeJson(String)}.
+   */
+  static String readJson(Object stored) {
+    if (stored instanceof Text) {
+      return ((Text) stored).getValue();
+    }
+    byte[] bytes = ((Blob) stored).getBytes();
+    for (int i = 0; i < COMPRESSED_MARKER.length; i++) {
+      if (bytes.length <= i || bytes[i] != COMPRESSED_MARKER[i]) {
+        throw new IllegalStateException("readJson: unknown format of a stored value");
+      }
+    }
+    try {
+      InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes,
+          COMPRESSED_MARKER.length, bytes.length - COMPRESSED_MARKER.length));
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+      byte[] buffer = new byte[8192];
+      for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+        out.write(buffer, 0, n);
+      }
+      in.close();
+      return out.toString("UTF-8");
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void countCompression(int rawBytes, int compressedBytes) {
+    long count = compressedCount.incrementAndGet();
+    long raw = totalRawBytes.addAndGet(rawBytes);
+    long compressed = totalCompressedBytes.addAndGet(compressedBytes);
+    if (count % REPORT_INTERVAL == 0) {
+      log.info("EntityPropertyCodec: compressed values: " + count + ", original bytes: " + raw
+          + ", compressed bytes: " + compressed + ", ratio: " + (compressed * 100 / raw) + "%");
+    }
+  }
+
+  private static void setProperty(Entity e, String propName, Object value,
+      Set<String> indexedProperties) {
+    if (indexedProperties == null || indexedProperties.contains(propName)) {
+      e.setProperty(propName, value);
+    } else {
+      e.setUnindexedProperty(propName, value);
+    }
+  }
+}
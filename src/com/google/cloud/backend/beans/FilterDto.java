@@ -13,20 +13,12 @@
  */
 package com.google.cloud.backend.beans;
 
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.prospectivesearch.FieldType;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
-
 /**
  * Represents an AST (abstract syntax tree) made of filters that represents a
  * query filter for a {@link QueryDto}. Equivalent to {@link FilterPredicate}
@@ -44,21 +36,19 @@ import javax.xml.datatype.DatatypeFactory;
  * - For AND, OR: This works as a composite filter. Values may have any number
  * of FilterDto instances.
  * 
+ * A property name may be a nested path of a Map or List property, such as
+ * "address.city" or "tags[]", if the path is configured to be indexed for the
+ * kind; it is then queried on its shadow property. Other names are used as
+ * they are, even if they contain "." or "[]".
+ * 
+ * Queries and schemas are generated from the {@link CompiledFilter} of the tree, which is
+ * compiled once per distinct tree and cached by its canonical form.
+ * 
  * TODO: This kind of behaviors should be implemented by polymorphism, but
  * Endpoints doesn't support inheritance.
  */
 public class FilterDto {
 
-  private static final DatatypeFactory datatypeFactory;
-
-  static {
-    try {
-      datatypeFactory = DatatypeFactory.newInstance();
-    } catch (DatatypeConfigurationException e) {
-      throw new RuntimeException(e);
-    }
-  }
-
   /**
    * Filter operations
    */
@@ -89,55 +79,18 @@ public class FilterDto {
   }
 
   /**
-   * Converts the tree of {@link FilterDto}s to a tree of {@link FilterDto}s.
+   * Returns the {@link CompiledFilter} of this tree of {@link FilterDto}s. It is not kept on the
+   * tree, as any node of the tree may be changed afterwards.
    */
-  public Filter getDatastoreFilter() {
-
-    switch (this.operator) {
-    case EQ:
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.EQUAL, getOperand());
-    case LT:
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.LESS_THAN, getOperand());
-    case LE:
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.LESS_THAN_OR_EQUAL,
-          getOperand());
-    case GT:
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.GREATER_THAN,
-          getOperand());
-    case GE:
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.GREATER_THAN_OR_EQUAL,
-          getOperand());
-    case NE:
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.NOT_EQUAL, getOperand());
-    case IN:
-      LinkedList<Object> l = new LinkedList<Object>(values);
-      l.removeFirst();
-      return new Query.FilterPredicate(getPropName(), Query.FilterOperator.IN, l);
-    case AND:
-      return new Query.CompositeFilter(CompositeFilterOperator.AND, getSubfilters(subfilters));
-    case OR:
-      return new Query.CompositeFilter(CompositeFilterOperator.OR, getSubfilters(subfilters));
-    }
-    return null;
+  public CompiledFilter compile() {
+    return CompiledFilter.compile(this);
   }
 
-  private String getPropName() {
-    return (String) values.get(0);
-  }
-
-  // returns Date if the operand is JSON date string
-  private Object getOperand() {
-    String s = String.valueOf(values.get(1));
-    long t = convertJSONDateToEpochTime(s);
-    return t == 0 ? values.get(1) : new Date(t);
-  }
-
-  private List<Filter> getSubfilters(List<FilterDto> values) {
-    List<Filter> subfilters = new LinkedList<Query.Filter>();
-    for (FilterDto cb : values) {
-      subfilters.add(cb.getDatastoreFilter());
-    }
-    return subfilters;
+  /**
+   * Converts the tree of {@link FilterDto}s to a tree of {@link Filter}s.
+   */
+  public Filter getDatastoreFilter() {
+    return compile().getDatastoreFilter();
   }
 
   @Override
@@ -157,131 +110,13 @@ public class FilterDto {
    * Returns Prospective Search query string that is converted form this filter.
    */
   protected String buildProsSearchQuery() {
-
-    switch (this.operator) {
-    case EQ:
-      return "( " + getPropName() + " : " + getOperandString() + ")";
-    case LT:
-      return "( " + getPropName() + " < " + getOperandString() + " )";
-    case LE:
-      return "( " + getPropName() + " <= " + getOperandString() + " )";
-    case GT:
-      return "( " + getPropName() + " > " + getOperandString() + " )";
-    case GE:
-      return "( " + getPropName() + " >= " + getOperandString() + " )";
-    case NE:
-      return "(NOT " + getPropName() + " : " + getOperandString() + ")";
-    case IN:
-      return buildQueryForOperatorIN();
-    case AND:
-      return buildQueryForLogicalOperator("AND");
-    case OR:
-      return buildQueryForLogicalOperator("OR");
-    }
-    return null;
-  }
-
-  private String getOperandString() {
-    return getOperandString(1);
-  }
-
-  // returns epoch time if the operand is JSON date string
-  private String getOperandString(int i) {
-    FieldType ft = detectFieldType(values.get(i));
-    String s = String.valueOf(values.get(i));
-    if (ft == FieldType.STRING || ft == FieldType.TEXT) {
-      s = "\"" + s + "\"";
-    }
-    long t = convertJSONDateToEpochTime(s);
-    return t == 0 ? s : String.valueOf(t);
-  }
-
-  private String buildQueryForOperatorIN() {
-    StringBuilder sb = new StringBuilder();
-    sb.append("(");
-    for (int i = 1; i < this.values.size(); i++) {
-      sb.append("(" + this.getPropName() + " : " + getOperandString(i) + " )");
-      if (i != this.values.size() - 1) {
-        sb.append(" OR ");
-      }
-    }
-    sb.append(")");
-    return sb.toString();
-  }
-
-  private String buildQueryForLogicalOperator(String op) {
-    StringBuilder sb = new StringBuilder();
-    sb.append("(");
-    for (int i = 0; i < this.subfilters.size(); i++) {
-      sb.append(this.subfilters.get(i).buildProsSearchQuery());
-      if (i != this.subfilters.size() - 1) {
-        sb.append(" " + op + " ");
-      }
-    }
-    sb.append(")");
-    return sb.toString();
+    return compile().getProsSearchQuery();
   }
 
   /**
    * Builds schema of Prospective Search for this filter.
    */
   protected Map<String, FieldType> buildProsSearchSchema() {
-    Map<String, FieldType> schema = new HashMap<String, FieldType>();
-    switch (this.operator) {
-    case EQ:
-    case LT:
-    case LE:
-    case GT:
-    case GE:
-    case NE:
-      schema.put(getPropName(), detectFieldType(values.get(1)));
-      break;
-    case IN: // IN supports only String
-      schema.put(getPropName(), FieldType.STRING);
-      break;
-    case AND:
-    case OR:
-      for (FilterDto cb : this.subfilters) {
-        schema.putAll(cb.buildProsSearchSchema());
-      }
-      break;
-    }
-    return schema;
-  }
-
-  private FieldType detectFieldType(Object value) {
-    if (value instanceof Boolean) {
-      return FieldType.BOOLEAN;
-    } else if (value instanceof Number) {
-      if (value instanceof Integer) {
-        return FieldType.INT32;
-      } else {
-        return FieldType.DOUBLE;
-      }
-    } else {
-      boolean isNotJSONDate = convertJSONDateToEpochTime(String.valueOf(value)) == 0;
-      if (isNotJSONDate) {
-        return FieldType.STRING;
-      } else {
-        return FieldType.DOUBLE;
-      }
-    }
-  }
-
-  // converts JSON date to epoch time value
-  // return 0 if it can't be converted
-  private long convertJSONDateToEpochTime(String date) {
-
-    // fast check if date could be a JSON date time
-    if (date == null || !date.matches("^\\d.+[Z\\d]$")) {
-      return 0;
-    }
-
-    // try to convert to epoch time
-    try {
-      return datatypeFactory.newXMLGregorianCalendar(date).toGregorianCalendar().getTimeInMillis();
-    } catch (Throwable th) {
-      return 0;
-    }
+    return compile().getProsSearchSchema();
   }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.users.User;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Compares single property values in the order Datastore sorts them: by type class first (null,
+ * integers and dates, booleans, strings and short blobs, doubles, geographical points, users,
+ * keys), and by value within a class. Dates are compared as microseconds, and strings and short
+ * blobs by their UTF-8 bytes.
+ *
+ * This is the only implementation of the Datastore value order, shared by the in-memory
+ * evaluation of {@link CompiledFilter}s, the merge of sub-query results and the subscription
+ * index, so that they all agree with Datastore and with each other.
+ */
+public final class PropertyValueComparator implements Comparator<Object> {
+
+  /**
+   * Type class of values that can't be indexed, such as Text and Blob.
+   */
+  public static final int TYPE_CLASS_UNINDEXED = -1;
+
+  // Datastore type classes in the order Datastore sorts them
+  private static final int TYPE_CLASS_NULL = 0;
+
+  private static final int TYPE_CLASS_INTEGER = 1;
+
+  private static final int TYPE_CLASS_BOOLEAN = 2;
+
+  private static final int TYPE_CLASS_STRING = 3;
+
+  private static final int TYPE_CLASS_DOUBLE = 4;
+
+  private static final int TYPE_CLASS_GEO_PT = 5;
+
+  private static final int TYPE_CLASS_USER = 6;
+
+  private static final int TYPE_CLASS_KEY = 7;
+
+  public static final PropertyValueComparator INSTANCE = new PropertyValueComparator();
+
+  private PropertyValueComparator() {
+  }
+
+  /**
+   * Compares two indexable values.
+   *
+   * @throws IllegalArgumentException
+   *           if either value is of a type that can't be indexed.
+   */
+  @Override
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  public int compare(Object a, Object b) {
+    int classA = getTypeClass(a);
+    int classB = getTypeClass(b);
+    if (classA == TYPE_CLASS_UNINDEXED || classB == TYPE_CLASS_UNINDEXED) {
+      throw new IllegalArgumentException("Unsupported property value type: "
+          + (classA == TYPE_CLASS_UNINDEXED ? a : b).getClass().getName());
+    }
+    if (classA != classB) {
+      return classA < classB ? -1 : 1;
+    }
+    switch (classA) {
+    case TYPE_CLASS_NULL:
+      return 0;
+    case TYPE_CLASS_INTEGER:
+      long la = toInt64(a);
+      long lb = toInt64(b);
+      return la < lb ? -1 : (la == lb ? 0 : 1);
+    case TYPE_CLASS_STRING:
+      if (a instanceof String && b instanceof String) {
+        return compareCodePoints((String) a, (String) b);
+      }
+      return compareBytes(toBytes(a), toBytes(b));
+    case TYPE_CLASS_DOUBLE:
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+    default:
+      return ((Comparable) a).compareTo(b);
+    }
+  }
+
+  /**
+   * Returns the Datastore type class of a value; classes are numbered in the order Datastore
+   * sorts them, and {@link #TYPE_CLASS_UNINDEXED} is returned for the types that can't be
+   * indexed.
+   */
+  public static int getTypeClass(Object value) {
+    if (value == null) {
+      return TYPE_CLASS_NULL;
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte || value instanceof Date) {
+      return TYPE_CLASS_INTEGER;
+    } else if (value instanceof Boolean) {
+      return TYPE_CLASS_BOOLEAN;
+    } else if (value instanceof String || value instanceof ShortBlob) {
+      return TYPE_CLASS_STRING;
+    } else if (value instanceof Double || value instanceof Float) {
+      return TYPE_CLASS_DOUBLE;
+    } else if (value instanceof GeoPt) {
+      return TYPE_CLASS_GEO_PT;
+    } else if (value instanceof User) {
+      return TYPE_CLASS_USER;
+    } else if (value instanceof Key) {
+      return TYPE_CLASS_KEY;
+    }
+    return TYPE_CLASS_UNINDEXED;
+  }
+
+  /**
+   * Returns the value a multi-valued property is sorted by: the smallest value when sorting in
+   * ascending order, and the largest one when sorting in descending order.
+   */
+  public Object getSortValue(Object value, boolean isAscending) {
+    if (!(value instanceof Collection)) {
+      return value;
+    }
+    Object sortValue = null;
+    boolean isFirst = true;
+    for (Object v : (Collection<?>) value) {
+      if (getTypeClass(v) == TYPE_CLASS_UNINDEXED) {
+        continue;
+      }
+      if (isFirst || (compare(v, sortValue) < 0) == isAscending) {
+        sortValue = v;
+        isFirst = false;
+      }
+    }
+    return sortValue;
+  }
+
+  // dates are stored as microseconds
+  private static long toInt64(Object value) {
+    return value instanceof Date ? ((Date) value).getTime() * 1000 : ((Number) value).longValue();
+  }
+
+  // strings are stored as UTF-8 bytes, whose order is the order of their code points
+  private static int compareCodePoints(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(j);
+      if (ca != cb) {
+        return ca < cb ? -1 : 1;
+      }
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    return i < a.length() ? 1 : (j < b.length() ? -1 : 0);
+  }
+
+  private static byte[] toBytes(Object value) {
+    if (value instanceof ShortBlob) {
+      return ((ShortBlob) value).getBytes();
+    }
+    try {
+      return ((String) value).getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int compareBytes(byte[] a, byte[] b) {
+    for (int i = 0; i < a.length && i < b.length; i++) {
+      int c = (a[i] & 0xff) - (b[i] & 0xff);
+      if (c != 0) {
+        return c < 0 ? -1 : 1;
+      }
+    }
+    return a.length < b.length ? -1 : (a.length == b.length ? 0 : 1);
+  }
+}
@@ -16,6 +16,7 @@ package com.google.cloud.backend.beans;
 import com.google.appengine.api.prospectivesearch.FieldType;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -58,6 +59,12 @@ public class QueryDto {
 
   private Integer limit;
 
+  private String startCursor;
+
+  private String endCursor;
+
+  private List<String> projectedPropertyNames;
+
   private Scope scope;
 
   private String regId;
@@ -66,6 +73,8 @@ public class QueryDto {
 
   private Integer subscriptionDurationSec;
 
+  private boolean isInlineEntity;
+
   public Integer getLimit() {
     return limit;
   }
@@ -74,6 +83,43 @@ public class QueryDto {
     this.limit = limit;
   }
 
+  /**
+   * Returns the web-safe cursor where the query should start, usually the
+   * {@link EntityListDto#getNextCursor()} of the previous page.
+   */
+  public String getStartCursor() {
+    return startCursor;
+  }
+
+  public void setStartCursor(String startCursor) {
+    this.startCursor = startCursor;
+  }
+
+  /**
+   * Returns the web-safe cursor where the query should end.
+   */
+  public String getEndCursor() {
+    return endCursor;
+  }
+
+  public void setEndCursor(String endCursor) {
+    this.endCursor = endCursor;
+  }
+
+  /**
+   * Returns the names of the properties to return, or null to return whole CloudEntities.
+   *
+   * Only indexed properties can be projected, and CloudEntities that don't have all of them are
+   * not returned. Each value of a multi-valued property is returned as a separate result.
+   */
+  public List<String> getProjectedPropertyNames() {
+    return projectedPropertyNames;
+  }
+
+  public void setProjectedPropertyNames(List<String> projectedPropertyNames) {
+    this.projectedPropertyNames = projectedPropertyNames;
+  }
+
   public FilterDto getFilterDto() {
     return cbFilter;
   }
@@ -181,4 +227,17 @@ public class QueryDto {
     this.subscriptionDurationSec = subscriptionDurationSec;
   }
 
+  /**
+   * Returns true if push notifications of this subscription should carry the matched
+   * CloudEntities, so that the device doesn't need to query them. The CloudEntities are only
+   * included when they fit in the push message; otherwise only the subscription id is sent.
+   */
+  public boolean isInlineEntity() {
+    return isInlineEntity;
+  }
+
+  public void setInlineEntity(boolean isInlineEntity) {
+    this.isInlineEntity = isInlineEntity;
+  }
+
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.beans;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Request and response of an incremental sync of the CloudEntities of a kind.
+ *
+ * A client sends the kind name and the sync token of its previous sync, or no token for the first
+ * sync. The response holds the CloudEntities that have been saved and deleted since, in the order
+ * of their update times, and a new token to resume from.
+ *
+ * The most recent changes are returned again by the next sync, as changes may still be committed
+ * behind them. Clients need to deduplicate the changes by id and updatedAt.
+ */
+public class SyncDto {
+
+  private String kindName;
+
+  private String syncToken;
+
+  private Integer limit;
+
+  private List<EntityDto> entries = new LinkedList<EntityDto>();
+
+  private List<EntityDto> tombstones = new LinkedList<EntityDto>();
+
+  private boolean hasMore;
+
+  public String getKindName() {
+    return kindName;
+  }
+
+  public void setKindName(String kindName) {
+    this.kindName = kindName;
+  }
+
+  /**
+   * Returns the token that identifies the position of a sync. In a request, it is the token of the
+   * previous response, or null to sync from the beginning.
+   */
+  public String getSyncToken() {
+    return syncToken;
+  }
+
+  public void setSyncToken(String syncToken) {
+    this.syncToken = syncToken;
+  }
+
+  /**
+   * Returns the maximum number of saved and of deleted CloudEntities to return, each.
+   */
+  public Integer getLimit() {
+    return limit;
+  }
+
+  public void setLimit(Integer limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Returns the CloudEntities that have been saved since the previous sync.
+   */
+  public List<EntityDto> getEntries() {
+    return entries;
+  }
+
+  public void setEntries(List<EntityDto> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Returns the CloudEntities that have been deleted since the previous sync. Only their ids, kind
+   * names and deletion times (as updatedAt) are set. A CloudEntity that was deleted and saved
+   * again may appear in both lists; the one with the later updatedAt is current.
+   */
+  public List<EntityDto> getTombstones() {
+    return tombstones;
+  }
+
+  public void setTombstones(List<EntityDto> tombstones) {
+    this.tombstones = tombstones;
+  }
+
+  /**
+   * Returns true if there are more changes to sync with the new token right away.
+   */
+  public boolean isHasMore() {
+    return hasMore;
+  }
+
+  public void setHasMore(boolean hasMore) {
+    this.hasMore = hasMore;
+  }
+}
@@ -32,8 +32,15 @@ import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -54,12 +61,41 @@ public class BackendConfigManager {
   static final String PUSH_NOTIFICATION_CERT_PASSWORD = "pushCertPasswd";
   static final String PUSH_NOTIFICATION_CERT_BINARY = "pushCertBinary";
   static final String LAST_SUBSCRIPTION_DELETE_TIMESTAMP = "lastSubsciptionDeleteAllTime";
+  static final String DEFERRED_MATCHING_ENABLED = "deferredMatchingEnabled";
+  static final String NOTIFICATION_COALESCING_WINDOW_SEC = "notificationCoalescingWindowSec";
+  static final String INDEXED_PROPERTIES = "indexedProperties";
+  static final String INDEXED_PROPERTIES_PREFIX = INDEXED_PROPERTIES + ":";
+  static final String INDEXED_PATHS = "indexedPaths";
+  static final String INDEXED_PATHS_PREFIX = INDEXED_PATHS + ":";
+  static final String BACKFILLING = "backfilling";
+  static final String BACKFILLING_PREFIX = BACKFILLING + ":";
+  static final String BACKFILL_ID_PREFIX = "backfillId:";
+  static final String CONFIGURATION_VERSION = "version";
   static final String MEMCACHE_FILE_KEY = "memcache file key";
   static final String PKCS12_BASE64_PREFIX = "pkcs12;base64,";
 
   private static final String PER_APP_SECRET_KEY = "secretKey";
   private static final String CURRENT_CONFIGURATION = "Current";
 
+  /**
+   * Name that stands for all the user properties of a kind among the names being backfilled.
+   */
+  public static final String ALL_PROPERTIES = "*";
+
+  // parsed names by kind of each prefix, cached with the version of the configuration
+  private static final Map<String, ParsedKindNames> parsedKindNames =
+      new ConcurrentHashMap<String, ParsedKindNames>();
+
+  private static class ParsedKindNames {
+    final long version;
+    final Map<String, Set<String>> namesByKind;
+
+    ParsedKindNames(long version, Map<String, Set<String>> namesByKind) {
+      this.version = version;
+      this.namesByKind = namesByKind;
+    }
+  }
+
   private final DatastoreService datastoreService;
   private final MemcacheService memcache;
 
@@ -172,8 +208,7 @@ public class BackendConfigManager {
       }
     }
 
-    datastoreService.put(configuration);
-    memcache.put(getMemKeyForConfigEntity(key), configuration);
+    putConfiguration(configuration);
 
     // Set endpoints auth config using client Ids that are not empty.
     List<String> clientIds = new ArrayList<String>();
@@ -208,6 +243,18 @@ public class BackendConfigManager {
     return KeyFactory.createKey(CONFIGURATION_ENTITY_KIND, CURRENT_CONFIGURATION);
   }
 
+  // bumps the version of the configuration, so that the names parsed from it are parsed again
+  private void putConfiguration(Entity config) {
+    config.setProperty(CONFIGURATION_VERSION, getVersion(config) + 1);
+    this.datastoreService.put(config);
+    this.memcache.put(getMemKeyForConfigEntity(getKey()), config);
+  }
+
+  private static long getVersion(Entity config) {
+    Long version = (Long) config.getProperty(CONFIGURATION_VERSION);
+    return version == null ? 0 : version;
+  }
+
   private String getMemKeyForConfigEntity(Key key) {
     return CONFIGURATION_ENTITY_KIND + KeyFactory.keyToString(key);
   }
@@ -218,8 +265,7 @@ public class BackendConfigManager {
   public void setLastSubscriptionDeleteAllTime(Date time) {
     Entity config = getConfiguration();
     config.setProperty(LAST_SUBSCRIPTION_DELETE_TIMESTAMP, time);
-    this.datastoreService.put(config);
-    this.memcache.put(getMemKeyForConfigEntity(getKey()), config);
+    putConfiguration(config);
   }
 
   /**
@@ -232,6 +278,196 @@ public class BackendConfigManager {
     return (Date) config.getProperty(LAST_SUBSCRIPTION_DELETE_TIMESTAMP);
   }
 
+  /**
+   * Enables or disables deferred matching of saved CloudEntities with subscriptions.
+   */
+  public void setDeferredMatchingEnabled(boolean enabled) {
+    Entity config = getConfiguration();
+    config.setProperty(DEFERRED_MATCHING_ENABLED, enabled);
+    putConfiguration(config);
+  }
+
+  /**
+   * Returns true if saved CloudEntities are matched with subscriptions by a task queue after the
+   * save request has returned; False if they are matched within the save request (default).
+   */
+  public boolean isDeferredMatchingEnabled() {
+    return Boolean.TRUE.equals(getConfiguration().getProperty(DEFERRED_MATCHING_ENABLED));
+  }
+
+  /**
+   * Sets the window in seconds over which notifications to a device are coalesced, or 0 to send
+   * each notification right away.
+   */
+  public void setNotificationCoalescingWindowSec(int windowSec) {
+    if (windowSec < 0) {
+      throw new IllegalArgumentException("windowSec cannot be negative");
+    }
+    Entity config = getConfiguration();
+    config.setProperty(NOTIFICATION_COALESCING_WINDOW_SEC, windowSec);
+    putConfiguration(config);
+  }
+
+  /**
+   * Returns the window in seconds over which the subscriptions of a device that are matched are
+   * collected and sent as one notification; 0 if each notification is sent right away (default).
+   */
+  public int getNotificationCoalescingWindowSec() {
+    Long windowSec = (Long) getConfiguration().getProperty(NOTIFICATION_COALESCING_WINDOW_SEC);
+    return windowSec == null ? 0 : windowSec.intValue();
+  }
+
+  /**
+   * Sets the user properties of a kind that are indexed. The other user properties of the kind
+   * are stored unindexed, so that they can't be used in query filters and sort orders but don't
+   * add index writes to each save. Properties that become indexed are added to the names being
+   * backfilled, as the CloudEntities saved before are missing from their indexes.
+   *
+   * @param kindName
+   *          name of the kind.
+   * @param propNames
+   *          names of the indexed properties, or null to index all the properties (default).
+   * @return true if a backfill of the kind needs to be started.
+   */
+  public boolean setIndexedProperties(String kindName, Collection<String> propNames) {
+    Set<String> current = getIndexedProperties().get(kindName);
+    Set<String> added = new HashSet<String>();
+    if (current != null && propNames == null) {
+      added.add(ALL_PROPERTIES);
+    } else if (current != null) {
+      added.addAll(propNames);
+      added.removeAll(current);
+    }
+    return setKindNames(INDEXED_PROPERTIES_PREFIX, kindName, propNames, added);
+  }
+
+  /**
+   * Returns the indexed user properties of the kinds that index only some of them, by kind name.
+   * All the user properties of the other kinds are indexed.
+   */
+  public Map<String, Set<String>> getIndexedProperties() {
+    return getKindNames(INDEXED_PROPERTIES_PREFIX);
+  }
+
+  /**
+   * Sets the nested paths of Map and List properties of a kind that are indexed, such as
+   * "address.city" or "tags[]". The values at these paths are stored as indexed shadow properties,
+   * so that queries can filter and sort on them. Paths that become indexed are added to the names
+   * being backfilled.
+   *
+   * @param kindName
+   *          name of the kind.
+   * @param paths
+   *          indexed paths, or null to index none (default).
+   * @return true if a backfill of the kind needs to be started.
+   */
+  public boolean setIndexedPaths(String kindName, Collection<String> paths) {
+    Set<String> current = getIndexedPaths().get(kindName);
+    Set<String> added = new HashSet<String>();
+    if (paths != null) {
+      added.addAll(paths);
+      if (current != null) {
+        added.removeAll(current);
+      }
+    }
+    return setKindNames(INDEXED_PATHS_PREFIX, kindName, paths, added);
+  }
+
+  /**
+   * Returns the indexed nested paths of the kinds that have any, by kind name.
+   */
+  public Map<String, Set<String>> getIndexedPaths() {
+    return getKindNames(INDEXED_PATHS_PREFIX);
+  }
+
+  /**
+   * Returns the user properties and nested paths that have been indexed since CloudEntities of
+   * their kinds were last backfilled, by kind name. Queries on them would miss the CloudEntities
+   * saved before they were indexed, until the backfill has run. {@link #ALL_PROPERTIES} stands for
+   * all the user properties of a kind.
+   */
+  public Map<String, Set<String>> getBackfillingNames() {
+    return getKindNames(BACKFILLING_PREFIX);
+  }
+
+  /**
+   * Returns the id of the latest backfill of the specified kind, or 0 if it has none in progress.
+   */
+  public long getBackfillId(String kindName) {
+    Long backfillId = (Long) getConfiguration().getProperty(BACKFILL_ID_PREFIX + kindName);
+    return backfillId == null ? 0 : backfillId;
+  }
+
+  /**
+   * Clears the names being backfilled of the specified kind, unless a later backfill has been
+   * started since the specified one.
+   *
+   * @return true if the names have been cleared.
+   */
+  public boolean completeBackfill(String kindName, long backfillId) {
+    Entity config = getConfiguration();
+    if (!Long.valueOf(backfillId).equals(config.getProperty(BACKFILL_ID_PREFIX + kindName))) {
+      return false;
+    }
+    config.removeProperty(BACKFILLING_PREFIX + kindName);
+    config.removeProperty(BACKFILL_ID_PREFIX + kindName);
+    putConfiguration(config);
+    return true;
+  }
+
+  // sets the names of a kind, and starts a new backfill if any of them are to be backfilled
+  private boolean setKindNames(String prefix, String kindName, Collection<String> names,
+      Set<String> backfillingNames) {
+    Entity config = getConfiguration();
+    if (names == null) {
+      config.removeProperty(prefix + kindName);
+    } else {
+      config.setUnindexedProperty(prefix + kindName, new ArrayList<String>(names));
+    }
+    boolean isBackfillNeeded = !backfillingNames.isEmpty();
+    if (isBackfillNeeded) {
+      Set<String> backfilling = new HashSet<String>(backfillingNames);
+      if (getBackfillingNames().containsKey(kindName)) {
+        backfilling.addAll(getBackfillingNames().get(kindName));
+      }
+      config.setUnindexedProperty(BACKFILLING_PREFIX + kindName,
+          new ArrayList<String>(backfilling));
+      config.setUnindexedProperty(BACKFILL_ID_PREFIX + kindName, System.currentTimeMillis());
+    }
+    putConfiguration(config);
+    return isBackfillNeeded;
+  }
+
+  // returns the names of each kind stored with the prefix, parsed again only if the
+  // configuration has changed since they were last parsed
+  private Map<String, Set<String>> getKindNames(String prefix) {
+    Entity config = getConfiguration();
+    long version = getVersion(config);
+    ParsedKindNames parsed = parsedKindNames.get(prefix);
+    if (parsed != null && parsed.version == version) {
+      return parsed.namesByKind;
+    }
+
+    Map<String, Set<String>> namesByKind = new HashMap<String, Set<String>>();
+    for (Map.Entry<String, Object> prop : config.getProperties().entrySet()) {
+      if (prop.getKey().startsWith(prefix)) {
+
+        // an empty list is stored as null
+        Set<String> names = new HashSet<String>();
+        if (prop.getValue() != null) {
+          for (Object name : (Collection<?>) prop.getValue()) {
+            names.add((String) name);
+          }
+        }
+        namesByKind.put(prop.getKey().substring(prefix.length()),
+            Collections.unmodifiableSet(names));
+      }
+    }
+    namesByKind = Collections.unmodifiableMap(namesByKind);
+    parsedKindNames.put(prefix, new ParsedKindNames(version, namesByKind));
+    return namesByKind;
+  }
+
   /**
    * Gets {@link AuthMode} of the current configuration.
    */
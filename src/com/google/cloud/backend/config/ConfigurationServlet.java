@@ -20,13 +20,22 @@ import com.google.appengine.api.users.UserServiceFactory;
 import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.beans.EntityListDto;
 import com.google.cloud.backend.spi.CrudOperations;
+import com.google.cloud.backend.spi.IndexBackfillServlet;
+import com.google.cloud.backend.spi.PropertyUsageTracker;
 import com.google.cloud.backend.spi.SubscriptionUtility;
+import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -40,6 +49,8 @@ public class ConfigurationServlet extends HttpServlet {
 
   private static BackendConfigManager configMgr = new BackendConfigManager();
 
+  private static final Gson gson = new Gson();
+
   private static final UserService userService = UserServiceFactory
       .getUserService();
 
@@ -59,6 +70,8 @@ public class ConfigurationServlet extends HttpServlet {
 
   private static final String PARAM_OPERATION_CLEAR_SUBSCRIPTIONS = "clearsubs";
 
+  private static final String PARAM_OPERATION_PROPERTY_USAGE = "propusage";
+
   private static final String PARAM_TOKEN = "token";
 
   private static final String JSON_RESP_PROP_MESSAGE = "message";
@@ -89,6 +102,8 @@ public class ConfigurationServlet extends HttpServlet {
       sendPushMessage(req, jsonResponse);
     } else if (PARAM_OPERATION_CLEAR_SUBSCRIPTIONS.equals(mode)) {
       clearAllSubscriptions(jsonResponse);
+    } else if (PARAM_OPERATION_PROPERTY_USAGE.equals(mode)) {
+      reportPropertyUsage(jsonResponse);
     } else {
       throw new IllegalArgumentException("No such operation: " + mode);
     }
@@ -117,6 +132,14 @@ public class ConfigurationServlet extends HttpServlet {
         (String) config.getProperty(BackendConfigManager.ANDROID_GCM_KEY));
     jsonResponse.addProperty(BackendConfigManager.PUSH_NOTIFICATION_CERT_PASSWORD,
         (String) config.getProperty(BackendConfigManager.PUSH_NOTIFICATION_CERT_PASSWORD));
+    jsonResponse.addProperty(BackendConfigManager.DEFERRED_MATCHING_ENABLED,
+        configMgr.isDeferredMatchingEnabled());
+    jsonResponse.addProperty(BackendConfigManager.NOTIFICATION_COALESCING_WINDOW_SEC,
+        configMgr.getNotificationCoalescingWindowSec());
+    jsonResponse.add(BackendConfigManager.INDEXED_PROPERTIES,
+        gson.toJsonTree(configMgr.getIndexedProperties()));
+    jsonResponse.add(BackendConfigManager.INDEXED_PATHS,
+        gson.toJsonTree(configMgr.getIndexedPaths()));
   }
 
   private void saveConfig(HttpServletRequest req, JsonObject jsonResponse) {
@@ -129,9 +152,62 @@ public class ConfigurationServlet extends HttpServlet {
         req.getParameter(BackendConfigManager.ANDROID_GCM_KEY),
         req.getParameter(BackendConfigManager.PUSH_NOTIFICATION_CERT_PASSWORD),
         req.getParameter(BackendConfigManager.PUSH_NOTIFICATION_CERT_BINARY));
+
+    // optional settings are changed only when specified
+    String deferredMatching = req.getParameter(BackendConfigManager.DEFERRED_MATCHING_ENABLED);
+    if (deferredMatching != null) {
+      configMgr.setDeferredMatchingEnabled(Boolean.valueOf(deferredMatching));
+    }
+    String coalescingWindow = req.getParameter(
+        BackendConfigManager.NOTIFICATION_COALESCING_WINDOW_SEC);
+    if (!StringUtility.isNullOrEmpty(coalescingWindow)) {
+      try {
+        configMgr.setNotificationCoalescingWindowSec(Integer.parseInt(coalescingWindow));
+      } catch (IllegalArgumentException e) {
+        jsonResponse.addProperty(JSON_RESP_PROP_MESSAGE, "Invalid coalescing window.");
+        return;
+      }
+    }
+
+    // indexed properties and paths are changed only for the kinds specified, e.g.
+    // {"Guests":["name"]}; a kind with null resets to the default
+    Map<String, List<String>> indexedProperties;
+    Map<String, List<String>> indexedPaths;
+    try {
+      indexedProperties = parseKindNames(req.getParameter(
+          BackendConfigManager.INDEXED_PROPERTIES));
+      indexedPaths = parseKindNames(req.getParameter(BackendConfigManager.INDEXED_PATHS));
+    } catch (JsonSyntaxException e) {
+      jsonResponse.addProperty(JSON_RESP_PROP_MESSAGE, "Invalid indexed properties or paths.");
+      return;
+    }
+    // entities saved while a property or path was unindexed are backfilled once it is indexed
+    Set<String> backfilledKindNames = new HashSet<String>();
+    for (Map.Entry<String, List<String>> entry : indexedProperties.entrySet()) {
+      if (configMgr.setIndexedProperties(entry.getKey(), entry.getValue())) {
+        backfilledKindNames.add(entry.getKey());
+      }
+    }
+    for (Map.Entry<String, List<String>> entry : indexedPaths.entrySet()) {
+      if (configMgr.setIndexedPaths(entry.getKey(), entry.getValue())) {
+        backfilledKindNames.add(entry.getKey());
+      }
+    }
+    for (String kindName : backfilledKindNames) {
+      IndexBackfillServlet.enqueueBackfill(kindName);
+    }
     jsonResponse.addProperty(JSON_RESP_PROP_MESSAGE, "Settings Saved.");
   }
 
+  // parses a JSON object of names by kind name, or returns an empty map if there's none
+  private static Map<String, List<String>> parseKindNames(String json) {
+    Map<String, List<String>> namesByKind = null;
+    if (!StringUtility.isNullOrEmpty(json)) {
+      namesByKind = gson.fromJson(json, new TypeToken<Map<String, List<String>>>() {}.getType());
+    }
+    return namesByKind == null ? new HashMap<String, List<String>>() : namesByKind;
+  }
+
   /**
    * a request with "op=broadcast" sends a broadcast message to all registered
    * devices. The message will contain all key-value pairs specified as
@@ -177,6 +253,49 @@ public class ConfigurationServlet extends HttpServlet {
         + params);
   }
 
+  /**
+   * a request with "op=propusage" reports, for each kind, the properties used in queries with
+   * their number of uses, the indexed properties that no query has used, the configured
+   * indexed properties if the kind indexes only some of them, and the properties and paths that
+   * are being backfilled, which queries can't use until the backfill has finished.
+   */
+  private void reportPropertyUsage(JsonObject jsonResp) {
+    Map<String, Map<String, Long>> usedProperties =
+        PropertyUsageTracker.getInstance().getUsedProperties();
+    Map<String, Set<String>> storedIndexedProperties =
+        PropertyUsageTracker.getInstance().getStoredIndexedProperties();
+    Map<String, Set<String>> configuredIndexedProperties = configMgr.getIndexedProperties();
+    Map<String, Set<String>> backfillingNames = configMgr.getBackfillingNames();
+
+    Set<String> kindNames = new TreeSet<String>(usedProperties.keySet());
+    kindNames.addAll(storedIndexedProperties.keySet());
+    kindNames.addAll(configuredIndexedProperties.keySet());
+    kindNames.addAll(backfillingNames.keySet());
+    JsonObject kinds = new JsonObject();
+    for (String kindName : kindNames) {
+      JsonObject kind = new JsonObject();
+      Map<String, Long> used = usedProperties.containsKey(kindName)
+          ? usedProperties.get(kindName) : new HashMap<String, Long>();
+      kind.add("queried", gson.toJsonTree(used));
+      Set<String> unused = new TreeSet<String>();
+      if (storedIndexedProperties.containsKey(kindName)) {
+        unused.addAll(storedIndexedProperties.get(kindName));
+      }
+      unused.removeAll(used.keySet());
+      kind.add("indexedNotQueried", gson.toJsonTree(unused));
+      if (configuredIndexedProperties.containsKey(kindName)) {
+        kind.add(BackendConfigManager.INDEXED_PROPERTIES,
+            gson.toJsonTree(new TreeSet<String>(configuredIndexedProperties.get(kindName))));
+      }
+      if (backfillingNames.containsKey(kindName)) {
+        kind.add(BackendConfigManager.BACKFILLING,
+            gson.toJsonTree(new TreeSet<String>(backfillingNames.get(kindName))));
+      }
+      kinds.add(kindName, kind);
+    }
+    jsonResp.add("kinds", kinds);
+  }
+
   private void clearAllSubscriptions(JsonObject jsonResp) {
     SubscriptionUtility.clearAllSubscriptionAndDeviceEntity();
     jsonResp.addProperty(JSON_RESP_PROP_MESSAGE, "Cleared all subscriptions.");
@@ -2,19 +2,25 @@ package com.google.cloud.backend.spi;
 
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
 import com.google.appengine.api.users.User;
 import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.beans.EntityListDto;
+import com.google.cloud.backend.config.BackendConfigManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,6 +29,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.inject.Named;
 
@@ -34,13 +44,37 @@ public class CrudOperations {
 
   private static final String CLOUD_ENTITY_ID_PREFIX = "CE:";
 
+  // limits of a single Datastore/Memcache batch RPC
+  private static final int MAX_ENTITIES_PER_RPC = 500;
+
+  private static final int MAX_KEYS_PER_RPC = 1000;
+
+  private static final long MAX_ESTIMATED_BYTES_PER_RPC = 4 * 1024 * 1024;
+
+  // limit of the entity groups written in a single cross-group transaction
+  private static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+
+  private static final Logger log = Logger.getLogger(CrudOperations.class.getName());
+
   private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
+  private static final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
+
+  private static final SubscriptionMatcher subscriptionMatcher = SubscriptionMatcher
+      .getInstance();
 
   private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  private static final AsyncMemcacheService asyncMemcache = MemcacheServiceFactory
+      .getAsyncMemcacheService();
+
+  private static final EntityCache entityCache = EntityCache.getInstance();
+
+  private static final QueryCache queryCache = QueryCache.getInstance();
+
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
+
   private static final CrudOperations _instance = new CrudOperations();
 
   /**
@@ -55,6 +89,14 @@ public class CrudOperations {
 
   /**
    * Saves all CloudEntities.
+   *
+   * The entities are split into chunks that fit into a single RPC, and the Datastore puts of all
+   * chunks are issued in parallel, so the latency of this method is close to that of the slowest
+   * of them. Each chunk is written to Memcache once its put has succeeded, so that Memcache never
+   * holds entities that haven't been committed. The ids of the entities of failed chunks are
+   * reported by {@link EntityListDto#getFailedIds()}; if all chunks fail, the error is thrown.
+   * Subscribers are matched only after Datastore has committed the entities, either within this
+   * method or by {@link EntityMatchingServlet} when deferred matching is enabled.
    * 
    * @param cdl
    *          {@link EntityListDto} that contains the CloudEntities.
@@ -67,49 +109,162 @@ public class CrudOperations {
   public EntityListDto saveAll(EntityListDto cdl, User user) throws UnauthorizedException {
 
     // find and update existing entities
-    Map<String, Entity> existingEntities = findAndUpdateExistingEntities(cdl, user);
+    Map<String, Set<String>> indexedProperties = backendConfigManager.getIndexedProperties();
+    Map<String, Set<String>> indexedPaths = backendConfigManager.getIndexedPaths();
+    Map<String, Set<String>> changedProperties = new HashMap<String, Set<String>>();
+    Map<String, Entity> existingEntities = findAndUpdateExistingEntities(cdl, user,
+        indexedProperties, indexedPaths, changedProperties);
 
     // create new entities
-    Set<Entity> newEntities = createNewEntities(cdl, user, existingEntities);
-
-    // apply changes to Datastore
-    Set<Entity> allEntities = new HashSet<Entity>();
-    allEntities.addAll(newEntities);
-    allEntities.addAll(existingEntities.values());
-    datastore.put(allEntities);
-
-    // update Memcache and ProsSearch
-    Map<String, Entity> allEntitiesMap = new HashMap<String, Entity>();
-    for (Entity e : allEntities) {
+    Set<Entity> newEntities = createNewEntities(cdl, user, existingEntities, indexedProperties,
+        indexedPaths);
+
+    // apply changes to Datastore in parallel, in RPC-sized chunks; existing entities that the
+    // update hasn't changed are skipped
+    List<Entity> changedEntities = new ArrayList<Entity>();
+    for (Map.Entry<String, Entity> entry : existingEntities.entrySet()) {
+      if (changedProperties.containsKey(entry.getKey())) {
+        changedEntities.add(entry.getValue());
+      }
+    }
+    List<Entity> allEntities = new ArrayList<Entity>(newEntities);
+    allEntities.addAll(changedEntities);
+    List<List<Entity>> chunks = splitIntoChunks(allEntities);
+    List<Future<List<Key>>> datastoreFutures = new ArrayList<Future<List<Key>>>();
+    for (List<Entity> chunk : chunks) {
+      datastoreFutures.add(asyncDatastore.put(chunk));
+    }
 
-      // if it's a "private" entity, skip memcache and prossearch
-      if (e.getKind().startsWith(SecurityChecker.KIND_PREFIX_PRIVATE)) {
+    // wait for Datastore, and update Memcache with the chunks that have been committed
+    List<Entity> savedEntities = new ArrayList<Entity>();
+    RuntimeException lastError = null;
+    for (int i = 0; i < chunks.size(); i++) {
+      List<Entity> chunk = chunks.get(i);
+      try {
+        waitFor(datastoreFutures.get(i));
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "saveAll: failed to save " + chunk.size() + " entities", e);
+
+        // a failed put may still have been applied, so the cached copies may be outdated
+        asyncMemcache.deleteAll(createCacheKeyMap(chunk).keySet());
+        for (Entity failed : chunk) {
+          cdl.addFailedId(failed.getKey().getName());
+        }
+        lastError = e;
         continue;
       }
+      asyncMemcache.putAll(createCacheKeyMap(chunk));
+      savedEntities.addAll(chunk);
+    }
+    if (savedEntities.isEmpty() && lastError != null) {
+      throw lastError;
+    }
 
-      // apply changes to Memcache
-      allEntitiesMap.put(e.getKey().getName(), e);
+    // an update that raced with a deletion has re-created its entity; remove the tombstone, or
+    // syncs would keep returning the entity as deleted too (new entities have fresh ids)
+    Set<Key> changedKeys = new HashSet<Key>(getKeys(changedEntities));
+    List<Key> savedChangedKeys = new ArrayList<Key>();
+    for (Entity e : savedEntities) {
+      if (changedKeys.contains(e.getKey())) {
+        savedChangedKeys.add(e.getKey());
+      }
+    }
+    if (!savedChangedKeys.isEmpty()) {
+      SyncOperations.deleteStaleTombstones(savedChangedKeys);
     }
-    memcache.putAll(allEntitiesMap);
 
-    // match with subscribers (date props converted to double)
-    for (Entity e : allEntities) {
-      convertDatePropertyToEpochTime(e, EntityDto.PROP_CREATED_AT);
-      convertDatePropertyToEpochTime(e, EntityDto.PROP_UPDATED_AT);
-      prosSearch.match(e, QueryOperations.PROS_SEARCH_DEFAULT_TOPIC);
+    // let other instances drop their cached copies of the updated entities
+    entityCache.invalidate(getKeys(changedEntities));
+    entityCache.putAll(savedEntities);
+    queryCache.invalidate(getKeys(savedEntities));
+
+    // match with subscribers, either right away or later on the task queue
+    if (backendConfigManager.isDeferredMatchingEnabled()) {
+      EntityMatchingServlet.enqueueMatching(getKeys(savedEntities));
+    } else {
+      matchEntities(savedEntities);
     }
 
     // return a list of the updated EntityDto
     return cdl;
   }
 
-  private void convertDatePropertyToEpochTime(Entity e, String propName) {
-    Date d = (Date) e.getProperty(propName);
-    e.setProperty(propName, Double.parseDouble(String.valueOf(d.getTime())));
+  /**
+   * Matches the specified entities with subscriptions, and enqueues the fan-out of the matched
+   * queries to their subscribers. If the subscriptions haven't been loaded on this instance yet,
+   * the entities are enqueued to be matched by {@link EntityMatchingServlet} instead.
+   *
+   * @param entitiesToMatch
+   *          saved CloudEntities.
+   */
+  void matchEntities(List<Entity> entitiesToMatch) {
+    Map<String, List<Entity>> matches = subscriptionMatcher.match(entitiesToMatch);
+    if (matches == null) {
+      EntityMatchingServlet.enqueueMatching(getKeys(entitiesToMatch));
+      return;
+    }
+    if (!matches.isEmpty()) {
+      SubscriptionFanoutServlet.enqueueFanout(matches);
+    }
+  }
+
+  /**
+   * Waits for the specified {@link Future} and returns its result. Exceptions thrown by the
+   * underlying RPC are rethrown as is.
+   */
+  static <T> T waitFor(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
   }
 
-  private Map<String, Entity> findAndUpdateExistingEntities(EntityListDto cdl, User user)
-      throws UnauthorizedException {
+  // splits entities into chunks that fit into a single Datastore/Memcache RPC
+  private List<List<Entity>> splitIntoChunks(List<Entity> entities) {
+    List<List<Entity>> chunks = new ArrayList<List<Entity>>();
+    List<Entity> chunk = new ArrayList<Entity>();
+    long chunkBytes = 0;
+    for (Entity e : entities) {
+      int size = EntityCache.estimateSize(e);
+      if (!chunk.isEmpty() && (chunk.size() == MAX_ENTITIES_PER_RPC
+          || chunkBytes + size > MAX_ESTIMATED_BYTES_PER_RPC)) {
+        chunks.add(chunk);
+        chunk = new ArrayList<Entity>();
+        chunkBytes = 0;
+      }
+      chunk.add(e);
+      chunkBytes += size;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private Map<String, Entity> createCacheKeyMap(List<Entity> entities) {
+    Map<String, Entity> cacheKeyMap = new HashMap<String, Entity>();
+    for (Entity e : entities) {
+      cacheKeyMap.put(EntityCache.createCacheKey(e.getKey()), e);
+    }
+    return cacheKeyMap;
+  }
+
+  /**
+   * Finds the existing entities of the specified CloudEntities and applies the updates to them.
+   * The names of the properties that an update has changed are put to the specified
+   * changedProperties by CloudEntity ID; entities that an update hasn't changed keep their update
+   * time and are left out.
+   */
+  private Map<String, Entity> findAndUpdateExistingEntities(EntityListDto cdl, User user,
+      Map<String, Set<String>> indexedProperties, Map<String, Set<String>> indexedPaths,
+      Map<String, Set<String>> changedProperties) throws UnauthorizedException {
 
     // create a list of CEs with existing Id
     EntityListDto entitiesWithIds = new EntityListDto();
@@ -134,21 +289,65 @@ public class CrudOperations {
 
       // update metadata
       EntityDto cd1 = entitiesWithIdMap.get(id);
+      Date updatedAt = (Date) e.getProperty(EntityDto.PROP_UPDATED_AT);
+      String updatedBy = (String) e.getProperty(EntityDto.PROP_UPDATED_BY);
       cd1.setUpdatedAt(new Date());
       if (user != null) {
         cd1.setUpdatedBy(user.getEmail());
       }
 
-      // update the entity
-      cd1.copyPropValuesToEntity(e);
+      // update the entity, and restore the metadata if nothing has changed
+      Entity original = e.clone();
+      cd1.copyPropValuesToEntity(e, indexedProperties.get(e.getKind()),
+          indexedPaths.get(e.getKind()));
+      Set<String> changed = findChangedProperties(original, e);
+      if (changed.isEmpty()) {
+        e.setProperty(EntityDto.PROP_UPDATED_AT, updatedAt);
+        e.setProperty(EntityDto.PROP_UPDATED_BY, updatedBy);
+        cd1.setUpdatedAt(updatedAt);
+        cd1.setUpdatedBy(updatedBy);
+      } else {
+        changedProperties.put(id, changed);
+      }
     }
     return existingEntities;
   }
 
+  private static Set<String> findChangedProperties(Entity original, Entity updated) {
+    Set<String> changed = new HashSet<String>();
+
+    // only shadow properties of nested paths are ever removed by an update
+    for (String propName : original.getProperties().keySet()) {
+      if (!updated.hasProperty(propName)) {
+        changed.add(propName);
+      }
+    }
+    for (Map.Entry<String, Object> prop : updated.getProperties().entrySet()) {
+      String propName = prop.getKey();
+      if (EntityDto.PROP_UPDATED_AT.equals(propName)
+          || EntityDto.PROP_UPDATED_BY.equals(propName)) {
+        continue;
+      }
+      Object originalValue = original.getProperty(propName);
+      if (!original.hasProperty(propName)
+          || (originalValue == null ? prop.getValue() != null
+              : !originalValue.equals(prop.getValue()))
+          || original.isUnindexedProperty(propName) != updated.isUnindexedProperty(propName)) {
+        changed.add(propName);
+      }
+    }
+    if (!changed.isEmpty()) {
+      changed.add(EntityDto.PROP_UPDATED_AT);
+      changed.add(EntityDto.PROP_UPDATED_BY);
+    }
+    return changed;
+  }
+
   /**
    * Returns a {@link Map} of CloudEntity IDs and {@link Entity}s for specified
    * {@link List} of {@link Key}s. It first tries to get them from Memcache, and
-   * get from Datastore for entities not cached.
+   * get from Datastore for entities not cached. Large key lists are fetched in
+   * parallel chunks.
    * 
    * @param keyList
    *          {@link List} of {@link Key}s
@@ -156,39 +355,71 @@ public class CrudOperations {
    */
   protected Map<String, Entity> getAllEntitiesByKeyList(List<Key> keyList) {
 
-    // try to get entities from Memcache
-    List<String> idList = new LinkedList<String>();
+    // try to get entities from the local cache
+    Map<String, Entity> resultEntities = new HashMap<String, Entity>();
+    for (Entity e : entityCache.getAll(keyList).values()) {
+      resultEntities.put(e.getKey().getName(), e);
+    }
+
+    // try to get the rest of entities from Memcache, in parallel chunks
+    List<String> cacheKeysNotInLocal = new ArrayList<String>();
     for (Key k : keyList) {
-      idList.add(k.getName());
+      if (!resultEntities.containsKey(k.getName())) {
+        cacheKeysNotInLocal.add(EntityCache.createCacheKey(k));
+      }
+    }
+    List<Future<Map<String, Object>>> memcacheFutures =
+        new ArrayList<Future<Map<String, Object>>>();
+    for (int i = 0; i < cacheKeysNotInLocal.size(); i += MAX_KEYS_PER_RPC) {
+      memcacheFutures.add(asyncMemcache.getAll(cacheKeysNotInLocal.subList(i,
+          Math.min(cacheKeysNotInLocal.size(), i + MAX_KEYS_PER_RPC))));
+    }
+    Map<String, Object> entities = new HashMap<String, Object>();
+    for (Future<Map<String, Object>> f : memcacheFutures) {
+      entities.putAll(waitFor(f));
     }
-    Map<String, Object> entities = memcache.getAll(idList);
 
     // build a list of Keys that have not found on Memcache
-    List<Key> keysNotInMem = new LinkedList<Key>();
+    List<Key> keysNotInMem = new ArrayList<Key>();
     for (Key k : keyList) {
-      if (!entities.keySet().contains(k.getName())) {
+      if (!resultEntities.containsKey(k.getName())
+          && !entities.containsKey(EntityCache.createCacheKey(k))) {
         keysNotInMem.add(k);
       }
     }
 
-    // get the rest of entities from Datastore
-    if (!keysNotInMem.isEmpty()) {
-      Map<Key, Entity> entitiesNotInMem = datastore.get(keysNotInMem);
-      for (Entity e : entitiesNotInMem.values()) {
-        entities.put(e.getKey().getName(), e);
+    // get the rest of entities from Datastore, in parallel chunks
+    List<Future<Map<Key, Entity>>> datastoreFutures = new ArrayList<Future<Map<Key, Entity>>>();
+    for (int i = 0; i < keysNotInMem.size(); i += MAX_KEYS_PER_RPC) {
+      datastoreFutures.add(asyncDatastore.get(keysNotInMem.subList(i,
+          Math.min(keysNotInMem.size(), i + MAX_KEYS_PER_RPC))));
+    }
+    for (Future<Map<Key, Entity>> f : datastoreFutures) {
+      for (Entity e : waitFor(f).values()) {
+        entities.put(EntityCache.createCacheKey(e.getKey()), e);
       }
     }
 
-    // cast to Entity
-    Map<String, Entity> resultEntities = new HashMap<String, Entity>();
-    for (String id : entities.keySet()) {
-      resultEntities.put(id, (Entity) entities.get(id));
+    // cast to Entity and keep them in the local cache
+    for (Object o : entities.values()) {
+      Entity e = (Entity) o;
+      resultEntities.put(e.getKey().getName(), e);
+      entityCache.put(e);
     }
     return resultEntities;
   }
 
+  private List<Key> getKeys(Collection<Entity> entities) {
+    List<Key> keys = new LinkedList<Key>();
+    for (Entity e : entities) {
+      keys.add(e.getKey());
+    }
+    return keys;
+  }
+
   private Set<Entity> createNewEntities(EntityListDto cdl, User user,
-      Map<String, Entity> existingEntities) {
+      Map<String, Entity> existingEntities, Map<String, Set<String>> indexedProperties,
+      Map<String, Set<String>> indexedPaths) {
 
     Set<Entity> newEntities = new HashSet<Entity>();
     for (EntityDto cd : cdl.getEntries()) {
@@ -215,7 +446,8 @@ public class CrudOperations {
         // create new Entity
         Entity e = new Entity(SecurityChecker.getInstance().createKeyWithNamespace(kindName,
             cd.getId(), user));
-        cd.copyPropValuesToEntity(e);
+        cd.copyPropValuesToEntity(e, indexedProperties.get(kindName),
+            indexedPaths.get(kindName));
         newEntities.add(e);
       }
     }
@@ -233,17 +465,27 @@ public class CrudOperations {
 
   private Entity getEntityById(String kindName, String id, User user) throws NotFoundException {
 
+    // try to find the Entity on the local cache
+    Key key = SecurityChecker.getInstance().createKeyWithNamespace(kindName, id, user);
+    Entity e = entityCache.get(key);
+    if (e != null) {
+      return e;
+    }
+
     // try to find the Entity on Memcache
-    Entity e = (Entity) memcache.get(id);
+    e = (Entity) memcache.get(EntityCache.createCacheKey(key));
 
     // try to find the Entity
     if (e == null) {
       try {
-        e = datastore.get(SecurityChecker.getInstance().createKeyWithNamespace(kindName, id, user));
+        e = datastore.get(key);
       } catch (EntityNotFoundException e2) {
         throw new NotFoundException("Cloud Entity not found for id: " + id);
       }
     }
+
+    // keep it in the local cache
+    entityCache.put(e);
     return e;
   }
 
@@ -273,11 +515,12 @@ public class CrudOperations {
     }
     SecurityChecker.getInstance().checkAclForWrite(e, user);
 
-    // delete from memcache
-    memcache.delete(id);
+    // delete from memcache and the local caches
+    memcache.delete(EntityCache.createCacheKey(e.getKey()));
+    entityCache.invalidate(Arrays.asList(e.getKey()));
 
     // delete the CE
-    datastore.delete(e.getKey());
+    deleteWithTombstones(Arrays.asList(e.getKey()), Arrays.asList(e));
 
     // return a EntityDto
     return EntityDto.createFromEntity(e);
@@ -291,13 +534,118 @@ public class CrudOperations {
       SecurityChecker.getInstance().checkAclForWrite(e, user);
     }
 
-    // delete from memcache
-    memcache.deleteAll(cdl.readIdList());
+    // delete from memcache and the local caches
+    List<Key> keys = cdl.readKeyList(user);
+    List<String> cacheKeys = new LinkedList<String>();
+    for (Key k : keys) {
+      cacheKeys.add(EntityCache.createCacheKey(k));
+    }
+    memcache.deleteAll(cacheKeys);
+    entityCache.invalidate(keys);
 
     // delete all the Entities
-    datastore.delete(cdl.readKeyList(user));
+    deleteWithTombstones(keys, entities.values());
 
     // return a dummy collection
     return new EntityListDto();
   }
+
+  /**
+   * Deletes the specified CloudEntities and writes their tombstones in the same transactions, so a
+   * deletion is never committed without its tombstone. Each transaction covers up to
+   * {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION} CloudEntities, and the transactions run in
+   * parallel. Then notifies the subscribers whose queries matched the CloudEntities before the
+   * deletion, either right away or from the task queue if deferred matching is enabled.
+   */
+  private void deleteWithTombstones(List<Key> keys, Collection<Entity> deletedEntities) {
+    List<Entity> entities = new ArrayList<Entity>(deletedEntities);
+    List<Entity> tombstones = SyncOperations.createTombstones(entities);
+
+    // begin a transaction for each group of entities
+    List<Future<Transaction>> txnFutures = new ArrayList<Future<Transaction>>();
+    for (int i = 0; i < entities.size(); i += MAX_ENTITY_GROUPS_PER_TRANSACTION) {
+      int groupSize = Math.min(entities.size() - i, MAX_ENTITY_GROUPS_PER_TRANSACTION);
+      txnFutures.add(asyncDatastore.beginTransaction(
+          TransactionOptions.Builder.withXG(groupSize > 1)));
+    }
+    List<Transaction> txns = new ArrayList<Transaction>();
+    for (Future<Transaction> f : txnFutures) {
+      txns.add(waitFor(f));
+    }
+
+    // delete the entities and put their tombstones, then commit all the transactions
+    RuntimeException failure = null;
+    try {
+      List<Future<?>> writeFutures = new ArrayList<Future<?>>();
+      for (int i = 0; i < txns.size(); i++) {
+        int from = i * MAX_ENTITY_GROUPS_PER_TRANSACTION;
+        int to = Math.min(entities.size(), from + MAX_ENTITY_GROUPS_PER_TRANSACTION);
+        writeFutures.add(asyncDatastore.delete(txns.get(i), getKeys(entities.subList(from, to))));
+        writeFutures.add(asyncDatastore.put(txns.get(i), tombstones.subList(from, to)));
+      }
+      for (Future<?> f : writeFutures) {
+        waitFor(f);
+      }
+      List<Future<Void>> commitFutures = new ArrayList<Future<Void>>();
+      for (Transaction txn : txns) {
+        commitFutures.add(txn.commitAsync());
+      }
+      for (Future<Void> f : commitFutures) {
+        try {
+          waitFor(f);
+        } catch (RuntimeException e) {
+          failure = failure == null ? e : failure;
+        }
+      }
+    } finally {
+      for (Transaction txn : txns) {
+        if (txn.isActive()) {
+          txn.rollbackAsync();
+        }
+      }
+    }
+
+    // some of the transactions may have been committed even if others have failed
+    queryCache.invalidate(keys);
+    if (failure != null) {
+      throw failure;
+    }
+
+    // the subscribers receive the tombstones in place of the deleted entities
+    if (backendConfigManager.isDeferredMatchingEnabled()) {
+      EntityMatchingServlet.enqueueMatching(getKeys(tombstones));
+    } else {
+      matchDeletedEntities(entities, tombstones);
+    }
+  }
+
+  /**
+   * Matches the specified deleted CloudEntities with subscriptions, and enqueues their tombstones
+   * to be sent to the subscribers of the matched queries. If the subscriptions haven't been loaded
+   * on this instance yet, the tombstones are enqueued to be matched by
+   * {@link EntityMatchingServlet} instead.
+   *
+   * @param deletedEntities CloudEntities that have been deleted
+   * @param tombstones the tombstones of the deleted CloudEntities
+   */
+  void matchDeletedEntities(List<Entity> deletedEntities, List<Entity> tombstones) {
+    Map<String, List<Entity>> matches = subscriptionMatcher.match(deletedEntities);
+    if (matches == null) {
+      EntityMatchingServlet.enqueueMatching(getKeys(tombstones));
+      return;
+    }
+    if (matches.isEmpty()) {
+      return;
+    }
+    Map<Key, Entity> tombstonesByKey = new HashMap<Key, Entity>();
+    for (Entity t : tombstones) {
+      tombstonesByKey.put(t.getParent(), t);
+    }
+    for (List<Entity> matched : matches.values()) {
+      for (int i = 0; i < matched.size(); i++) {
+        matched.set(i, tombstonesByKey.get(matched.get(i).getKey()));
+      }
+    }
+    SubscriptionFanoutServlet.enqueueFanout(matches);
+  }
 }
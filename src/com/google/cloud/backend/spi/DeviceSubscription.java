@@ -24,6 +24,8 @@ import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.Queue;
@@ -37,16 +39,22 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.logging.Logger;
 
 /**
  * Handles the persistence of each device and Perspective Search API subscription.
  */
 public class DeviceSubscription {
+  private static final Logger log = Logger.getLogger(DeviceSubscription.class.getName());
 
   private final MemcacheService memcacheService;
   private final DatastoreService datastoreService;
@@ -119,6 +127,41 @@ public class DeviceSubscription {
     return entity;
   }
 
+  /**
+   * Returns entities with device subscription information for the provided deviceIds, with one
+   *     memcache call and at most one datastore call.
+   *
+   * @param deviceIds Unique device identifiers
+   * @return a map of deviceId to entity with device subscription information; devices without
+   *         corresponding information are not included
+   */
+  public Map<String, Entity> getAll(Collection<String> deviceIds) {
+    Map<Key, String> deviceIdsByKey = new HashMap<Key, String>();
+    for (String deviceId : deviceIds) {
+      deviceIdsByKey.put(getKey(deviceId), deviceId);
+    }
+    Map<String, Entity> entities = new HashMap<String, Entity>();
+    Map<Key, Object> cached = this.memcacheService.getAll(deviceIdsByKey.keySet());
+    for (Map.Entry<Key, Object> entry : cached.entrySet()) {
+      entities.put(deviceIdsByKey.get(entry.getKey()), (Entity) entry.getValue());
+    }
+
+    // Get from datastore the entities that are not cached
+    List<Key> missingKeys = new ArrayList<Key>();
+    for (Key key : deviceIdsByKey.keySet()) {
+      if (!cached.containsKey(key)) {
+        missingKeys.add(key);
+      }
+    }
+    if (!missingKeys.isEmpty()) {
+      for (Entity entity : this.datastoreService.get(missingKeys).values()) {
+        entities.put(deviceIdsByKey.get(entity.getKey()), entity);
+      }
+    }
+
+    return entities;
+  }
+
   /**
    * Returns a set of subscriptions subscribed from the device.
    *
@@ -142,6 +185,23 @@ public class DeviceSubscription {
     return this.gson.fromJson(subscriptionString, setType);
   }
 
+  /**
+   * Returns all subscriptions subscribed from the provided devices.
+   *
+   * @param devices Entities with device subscription information
+   */
+  public Set<String> getSubscriptionIds(Collection<Entity> devices) {
+    Set<String> subscriptions = new HashSet<String>();
+    for (Entity device : devices) {
+      String subscriptionString = (String) device.getProperty(PROPERTY_SUBSCRIPTION_IDS);
+      if (!StringUtility.isNullOrEmpty(subscriptionString)) {
+        Set<String> ids = this.gson.fromJson(subscriptionString, setType);
+        subscriptions.addAll(ids);
+      }
+    }
+    return subscriptions;
+  }
+
   /**
    * Creates an entity to persist a subscriptionID subscribed by a specific device.
    *
@@ -194,6 +254,77 @@ public class DeviceSubscription {
     return deviceSubscription;
   }
 
+  /**
+   * Moves the subscriptions of devices to their canonical device ids, merging them with the
+   *     subscriptions already made under the canonical ids. Each device is moved in its own
+   *     transaction with its canonical device, and devices that are modified concurrently are
+   *     skipped, to be moved when GCM reports their canonical ids again.
+   *
+   * @param canonicalIds a map of device id to the canonical id of the same device
+   * @return a map of each moved subscription id to its new subscription id
+   */
+  public Map<String, String> migrateToCanonicalIds(Map<String, String> canonicalIds) {
+    Map<String, String> newSubIds = new HashMap<String, String>();
+    for (Map.Entry<String, String> entry : canonicalIds.entrySet()) {
+      if (entry.getKey().equals(entry.getValue())) {
+        continue;
+      }
+      try {
+        newSubIds.putAll(migrateToCanonicalId(entry.getKey(), entry.getValue()));
+      } catch (ConcurrentModificationException e) {
+        log.info("DeviceSubscription: device " + entry.getKey() + " is being modified, "
+            + "not moved to its canonical id");
+      }
+    }
+    return newSubIds;
+  }
+
+  // moves the subscriptions of a device to its canonical device in a cross-group transaction
+  private Map<String, String> migrateToCanonicalId(String deviceId, String canonicalId) {
+    Map<String, String> newSubIds = new HashMap<String, String>();
+    Key oldKey = getKey(deviceId);
+    Key key = getKey(canonicalId);
+    Entity device;
+    Transaction txn = this.datastoreService.beginTransaction(
+        TransactionOptions.Builder.withXG(true));
+    try {
+      Map<Key, Entity> devices = this.datastoreService.get(txn, Arrays.asList(oldKey, key));
+      Entity oldDevice = devices.get(oldKey);
+      if (oldDevice == null) {
+        return newSubIds;
+      }
+      device = devices.get(key);
+      if (device == null) {
+        device = new Entity(key);
+        device.setProperty(PROPERTY_ID, canonicalId);
+        device.setProperty(PROPERTY_DEVICE_TYPE, oldDevice.getProperty(PROPERTY_DEVICE_TYPE));
+      }
+
+      // Subscription ids start with the device id, which is replaced by the canonical id
+      Set<String> subscriptions = getSubscriptionIds(Arrays.asList(device));
+      for (String subId : getSubscriptionIds(Arrays.asList(oldDevice))) {
+        String newSubId = canonicalId + subId.substring(subId.indexOf(':'));
+        newSubIds.put(subId, newSubId);
+        subscriptions.add(newSubId);
+      }
+      device.setProperty(PROPERTY_SUBSCRIPTION_IDS, this.gson.toJson(subscriptions));
+      device.setProperty(PROPERTY_TIMESTAMP,
+          Calendar.getInstance(TimeZone.getTimeZone("UTC")).getTime());
+      this.datastoreService.put(txn, device);
+      this.datastoreService.delete(txn, oldKey);
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+
+    // Memcache is only updated once the transaction has been committed
+    this.memcacheService.put(key, device);
+    this.memcacheService.delete(oldKey);
+    return newSubIds;
+  }
+
   /**
    * Deletes an entity corresponding to the provided deviceId.
    *
@@ -209,6 +340,19 @@ public class DeviceSubscription {
     this.memcacheService.delete(key);
   }
 
+  /**
+   * Deletes entities corresponding to the provided deviceIds.
+   *
+   * @param deviceIds the device ids for which all subscription information are to be deleted
+   */
+  public void deleteAll(Collection<String> deviceIds) {
+    List<Key> keys = new ArrayList<Key>();
+    for (String deviceId : deviceIds) {
+      keys.add(getKey(deviceId));
+    }
+    deleteInBatch(keys);
+  }
+
   private void deleteInBatch(List<Key> keys) {
     this.memcacheService.deleteAll(keys);
     this.datastoreService.delete(keys);
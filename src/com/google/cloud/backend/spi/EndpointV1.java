@@ -25,6 +25,7 @@ import com.google.appengine.api.users.User;
 import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.beans.EntityListDto;
 import com.google.cloud.backend.beans.QueryDto;
+import com.google.cloud.backend.beans.SyncDto;
 
 import javax.inject.Named;
 
@@ -232,4 +233,32 @@ public class EndpointV1 {
       throw new BadRequestException(e.getMessage());
     }
   }
+
+  /**
+   * Returns the CloudEntities of a kind that have been saved or deleted since the previous sync.
+   * Recent changes are returned again by the next sync, so clients need to deduplicate them by id
+   * and updatedAt.
+   *
+   * @param syncDto
+   *          {@link SyncDto} with the kind name and the sync token of the previous sync.
+   * @param user
+   *          {@link User} who requested this operation
+   * @return {@link SyncDto} that contains the saved and deleted {@link EntityDto}s and a new sync
+   *         token.
+   * @throws UnauthorizedException
+   *           if the requesting {@link User} has no sufficient permission for
+   *           the operation.
+   * @throws BadRequestException when syncDto has an invalid sync token or limit.
+   */
+  @ApiMethod(path = "CloudEntities/sync", httpMethod = HttpMethod.POST)
+  public SyncDto sync(SyncDto syncDto, User user)
+      throws UnauthorizedException, BadRequestException {
+
+    SecurityChecker.getInstance().checkIfUserIsAvailable(user);
+    try {
+      return SyncOperations.getInstance().sync(syncDto, user);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+  }
 }
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Per-instance, size-bounded LRU cache of CloudEntities that sits in front of Memcache.
+ * Entities are cached under the key returned by {@link #createCacheKey(Key)}.
+ *
+ * Entries expire after {@link #TTL_MILLIS} and are evicted in least-recently-used order once the
+ * estimated size of all cached entities exceeds {@link #MAX_BYTES}. Other instances are notified
+ * of updates and deletions through generation counters kept in Memcache, one for each of the
+ * {@link #GENERATION_BUCKETS} buckets that the keys of a namespace and kind are hashed into, so
+ * that a change only invalidates the entries of its bucket. Each instance re-reads the counter of a
+ * bucket at most once per {@link #GENERATION_CHECK_INTERVAL_MILLIS}, so a stale entry may be
+ * served for up to that interval after it was changed on another instance. The hit, miss and
+ * eviction counts are logged every {@link #REPORT_INTERVAL} lookups.
+ *
+ * Cached entities are copied on the way in and on the way out, as callers modify the entities
+ * they get.
+ */
+class EntityCache {
+
+  static final long MAX_BYTES = 16 * 1024 * 1024;
+
+  static final long TTL_MILLIS = 60 * 1000;
+
+  static final long GENERATION_CHECK_INTERVAL_MILLIS = 1000;
+
+  static final int GENERATION_BUCKETS = 64;
+
+  static final int REPORT_INTERVAL = 10000;
+
+  private static final String CACHE_KEY_PREFIX = "CE/";
+
+  private static final String GENERATION_KEY_PREFIX = "_EntityCacheGeneration:";
+
+  // rough per-object overhead used for size estimation
+  private static final int OBJECT_OVERHEAD_BYTES = 16;
+
+  private static final Logger log = Logger.getLogger(EntityCache.class.getName());
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final AsyncMemcacheService asyncMemcache = MemcacheServiceFactory
+      .getAsyncMemcacheService();
+
+  private static final EntityCache _instance = new EntityCache();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static EntityCache getInstance() {
+    return _instance;
+  }
+
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+      16, 0.75f, true);
+
+  private final ConcurrentMap<String, Generation> generations =
+      new ConcurrentHashMap<String, Generation>();
+
+  private final AtomicLong lookupCount = new AtomicLong();
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private long currentBytes;
+
+  private EntityCache() {
+  }
+
+  private static class CacheEntry {
+    final Entity entity;
+    final int size;
+    final long expiresAt;
+    final long generation;
+
+    CacheEntry(Entity entity, int size, long expiresAt, long generation) {
+      this.entity = entity;
+      this.size = size;
+      this.expiresAt = expiresAt;
+      this.generation = generation;
+    }
+  }
+
+  // generation of a bucket as last seen by this instance
+  private static class Generation {
+    private long value;
+    private long setCount;
+    final AtomicLong checkedAt = new AtomicLong();
+
+    synchronized long get() {
+      return value;
+    }
+
+    synchronized long getSetCount() {
+      return setCount;
+    }
+
+    // sets the value this instance has bumped the counter to
+    synchronized void set(long value) {
+      this.value = value;
+      setCount++;
+    }
+
+    // sets the value read from Memcache, unless this instance has bumped it since the read began
+    synchronized void setRead(long value, long setCountBeforeRead) {
+      if (setCount == setCountBeforeRead) {
+        this.value = value;
+      }
+    }
+  }
+
+  /**
+   * Returns the key under which the entity with the specified {@link Key} is cached, both in this
+   * cache and in Memcache. The cache key is made of the namespace, the kind and the id of the
+   * entity, so that entities of "private" kinds in different user namespaces never collide.
+   *
+   * @param key
+   *          {@link Key} of the CloudEntity
+   */
+  static String createCacheKey(Key key) {
+    return CACHE_KEY_PREFIX + key.getNamespace() + "/" + key.getKind() + "/" + key.getName();
+  }
+
+  // namespace, kind and hash bucket of an entity; namespaces can't contain "/"
+  private static String createBucket(Key key) {
+    return key.getNamespace() + "/" + key.getKind() + "/"
+        + (key.getName().hashCode() & Integer.MAX_VALUE) % GENERATION_BUCKETS;
+  }
+
+  /**
+   * Returns a copy of the cached {@link Entity} for the specified {@link Key}, or null if it is not
+   * cached, has expired or has been changed on another instance.
+   *
+   * @param key
+   *          {@link Key} of the CloudEntity
+   */
+  Entity get(Key key) {
+    long now = System.currentTimeMillis();
+    return get(key, getGenerations(Arrays.asList(key), now), now);
+  }
+
+  /**
+   * Returns copies of all cached entities for the specified keys. Keys that are not cached are
+   * omitted from the result.
+   *
+   * @param keys
+   *          {@link Collection} of {@link Key}s of CloudEntities
+   */
+  Map<Key, Entity> getAll(Collection<Key> keys) {
+    long now = System.currentTimeMillis();
+    Map<String, Long> bucketGenerations = getGenerations(keys, now);
+    Map<Key, Entity> result = new HashMap<Key, Entity>();
+    for (Key key : keys) {
+      Entity e = get(key, bucketGenerations, now);
+      if (e != null) {
+        result.put(key, e);
+      }
+    }
+    return result;
+  }
+
+  private Entity get(Key key, Map<String, Long> bucketGenerations, long now) {
+    if (lookupCount.incrementAndGet() % REPORT_INTERVAL == 0) {
+      log.info(toString());
+    }
+    String cacheKey = createCacheKey(key);
+    CacheEntry ce;
+    synchronized (entries) {
+      ce = entries.get(cacheKey);
+    }
+    if (ce == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    if (ce.expiresAt < now || ce.generation != bucketGenerations.get(createBucket(key))) {
+      remove(cacheKey, ce);
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return ce.entity.clone();
+  }
+
+  /**
+   * Caches a copy of the specified {@link Entity}.
+   */
+  void put(Entity e) {
+    putAll(Arrays.asList(e));
+  }
+
+  /**
+   * Caches copies of all the specified entities.
+   */
+  void putAll(Collection<Entity> entities) {
+    long now = System.currentTimeMillis();
+    List<Key> keys = new ArrayList<Key>();
+    for (Entity e : entities) {
+      keys.add(e.getKey());
+    }
+    Map<String, Long> bucketGenerations = getGenerations(keys, now);
+    for (Entity e : entities) {
+      int size = estimateSize(e);
+      if (size > MAX_BYTES) {
+        continue;
+      }
+      CacheEntry ce = new CacheEntry(e.clone(), size, now + TTL_MILLIS,
+          bucketGenerations.get(createBucket(e.getKey())));
+      String cacheKey = createCacheKey(e.getKey());
+      synchronized (entries) {
+        CacheEntry old = entries.put(cacheKey, ce);
+        if (old != null) {
+          currentBytes -= old.size;
+        }
+        currentBytes += size;
+        evictIfNeeded();
+      }
+    }
+  }
+
+  /**
+   * Invalidates the cached entities of the buckets of the specified keys on all instances, and
+   * removes the specified keys from the cache of this instance right away.
+   *
+   * @param keys
+   *          {@link Key}s of the changed CloudEntities.
+   */
+  void invalidate(Collection<Key> keys) {
+    Set<String> buckets = new HashSet<String>();
+    synchronized (entries) {
+      for (Key key : keys) {
+        buckets.add(createBucket(key));
+        CacheEntry old = entries.remove(createCacheKey(key));
+        if (old != null) {
+          currentBytes -= old.size;
+        }
+      }
+    }
+
+    // bump the counters of all buckets in parallel
+    Map<String, Future<Long>> futures = new HashMap<String, Future<Long>>();
+    for (String bucket : buckets) {
+      futures.put(bucket, asyncMemcache.increment(GENERATION_KEY_PREFIX + bucket, 1, 0L));
+    }
+    for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+      Long value = CrudOperations.waitFor(entry.getValue());
+      if (value != null) {
+        Generation g = getOrCreateGeneration(entry.getKey());
+        g.set(value);
+        g.checkedAt.set(System.currentTimeMillis());
+      }
+    }
+  }
+
+  private void remove(String cacheKey, CacheEntry ce) {
+    synchronized (entries) {
+      if (entries.get(cacheKey) == ce) {
+        entries.remove(cacheKey);
+        currentBytes -= ce.size;
+      }
+    }
+  }
+
+  // must be called while holding the lock on entries
+  private void evictIfNeeded() {
+    Iterator<CacheEntry> it = entries.values().iterator();
+    while (currentBytes > MAX_BYTES && it.hasNext()) {
+      CacheEntry eldest = it.next();
+      it.remove();
+      currentBytes -= eldest.size;
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  // returns the generations of the buckets of the specified keys; the buckets that haven't been
+  // checked for GENERATION_CHECK_INTERVAL_MILLIS are read from Memcache in one batch, without
+  // holding a lock, by the one thread that claims each of them
+  private Map<String, Long> getGenerations(Collection<Key> keys, long now) {
+    Map<String, Generation> buckets = new HashMap<String, Generation>();
+    for (Key key : keys) {
+      String bucket = createBucket(key);
+      if (!buckets.containsKey(bucket)) {
+        buckets.put(bucket, getOrCreateGeneration(bucket));
+      }
+    }
+
+    Map<String, Long> setCounts = new HashMap<String, Long>();
+    for (Map.Entry<String, Generation> entry : buckets.entrySet()) {
+      AtomicLong checkedAt = entry.getValue().checkedAt;
+      long last = checkedAt.get();
+      if (now - last >= GENERATION_CHECK_INTERVAL_MILLIS && checkedAt.compareAndSet(last, now)) {
+        setCounts.put(GENERATION_KEY_PREFIX + entry.getKey(), entry.getValue().getSetCount());
+      }
+    }
+    if (!setCounts.isEmpty()) {
+      Map<String, Object> values = memcache.getAll(setCounts.keySet());
+      for (Map.Entry<String, Long> entry : setCounts.entrySet()) {
+        Object value = values.get(entry.getKey());
+        buckets.get(entry.getKey().substring(GENERATION_KEY_PREFIX.length())).setRead(
+            value == null ? 0 : (Long) value, entry.getValue());
+      }
+    }
+
+    Map<String, Long> bucketGenerations = new HashMap<String, Long>();
+    for (Map.Entry<String, Generation> entry : buckets.entrySet()) {
+      bucketGenerations.put(entry.getKey(), entry.getValue().get());
+    }
+    return bucketGenerations;
+  }
+
+  private Generation getOrCreateGeneration(String bucket) {
+    Generation g = generations.get(bucket);
+    if (g == null) {
+      generations.putIfAbsent(bucket, new Generation());
+      g = generations.get(bucket);
+    }
+    return g;
+  }
+
+  /**
+   * Returns a rough estimate of the memory used by the specified {@link Entity} in bytes.
+   */
+  static int estimateSize(Entity e) {
+    int size = OBJECT_OVERHEAD_BYTES + estimateValueSize(e.getKey().getName());
+    for (Map.Entry<String, Object> prop : e.getProperties().entrySet()) {
+      size += OBJECT_OVERHEAD_BYTES + estimateValueSize(prop.getKey())
+          + estimateValueSize(prop.getValue());
+    }
+    return size;
+  }
+
+  private static int estimateValueSize(Object value) {
+    if (value == null) {
+      return 0;
+    } else if (value instanceof String) {
+      return OBJECT_OVERHEAD_BYTES + ((String) value).length() * 2;
+    } else if (value instanceof Text) {
+      return OBJECT_OVERHEAD_BYTES + ((Text) value).getValue().length() * 2;
+    } else if (value instanceof Blob) {
+      return OBJECT_OVERHEAD_BYTES + ((Blob) value).getBytes().length;
+    } else if (value instanceof ShortBlob) {
+      return OBJECT_OVERHEAD_BYTES + ((ShortBlob) value).getBytes().length;
+    } else if (value instanceof Collection) {
+      int size = OBJECT_OVERHEAD_BYTES;
+      for (Object o : (Collection<?>) value) {
+        size += estimateValueSize(o);
+      }
+      return size;
+    }
+    return OBJECT_OVERHEAD_BYTES + 8;
+  }
+
+  /**
+   * Returns the number of lookups served from this cache.
+   */
+  long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of lookups that could not be served from this cache.
+   */
+  long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of entities evicted to keep the cache under {@link #MAX_BYTES}.
+   */
+  long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Returns the estimated size of all cached entities in bytes.
+   */
+  long getByteSize() {
+    synchronized (entries) {
+      return currentBytes;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "EntityCache hits: " + getHitCount() + ", misses: " + getMissCount() + ", evictions: "
+        + getEvictionCount() + ", bytes: " + getByteSize();
+  }
+}
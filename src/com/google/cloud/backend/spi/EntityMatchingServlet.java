@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.StringUtility;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for matching saved and deleted CloudEntities with subscriptions in batches.
+ *
+ * It is intended to be called by Push Task Queue, so the request is retried if it fails. Each task
+ * carries only the keys of the saved entities; the entities themselves are read back through the
+ * caches that have just been populated by the save request. Deleted CloudEntities are carried as
+ * the keys of their tombstones, and restored from the copies held by the tombstones.
+ */
+public class EntityMatchingServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(EntityMatchingServlet.class.getName());
+  private static final Gson gson = new Gson();
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  static final int MATCHING_BATCH_SIZE = 100;
+
+  // the maximum number of tasks that can be added to a queue at once
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String keysParameter = req.getParameter("keys");
+    if (StringUtility.isNullOrEmpty(keysParameter)) {
+      log.warning("Missing 'keys' argument on task queue request. This indicates a bug");
+      return;
+    }
+
+    String[] keyStrings;
+    try {
+      keyStrings = gson.fromJson(keysParameter, String[].class);
+    } catch (JsonSyntaxException e) {
+      log.warning("Invalid format of 'keys' argument on task queue request. "
+          + "This indicates a bug");
+      return;
+    }
+
+    // task queue requests may wait for the subscriptions to be loaded on this instance
+    long startTime = System.currentTimeMillis();
+    SubscriptionMatcher.getInstance().load();
+    List<Key> keys = new ArrayList<Key>();
+    List<Key> tombstoneKeys = new ArrayList<Key>();
+    for (String keyString : keyStrings) {
+      Key k = KeyFactory.stringToKey(keyString);
+      if (SyncOperations.TOMBSTONE_KIND.equals(k.getKind())) {
+        tombstoneKeys.add(k);
+      } else {
+        keys.add(k);
+      }
+    }
+
+    // get the entities (deleted ones are skipped) and match them
+    Map<String, Entity> entities = CrudOperations.getInstance().getAllEntitiesByKeyList(keys);
+    List<Entity> entitiesToMatch = new ArrayList<Entity>(entities.values());
+    CrudOperations.getInstance().matchEntities(entitiesToMatch);
+
+    // restore the deleted entities from their tombstones (swept ones are skipped) and match them
+    List<Entity> tombstones = new ArrayList<Entity>(datastore.get(tombstoneKeys).values());
+    List<Entity> deletedEntities = new ArrayList<Entity>();
+    for (Entity t : tombstones) {
+      Entity e = SyncOperations.restoreDeletedEntity(t);
+      if (e != null) {
+        deletedEntities.add(e);
+      }
+    }
+    CrudOperations.getInstance().matchDeletedEntities(deletedEntities, tombstones);
+
+    // report metrics of this batch
+    long endTime = System.currentTimeMillis();
+    String enqueuedAt = req.getParameter("enqueuedAt");
+    long queueDelay = StringUtility.isNullOrEmpty(enqueuedAt) ? -1
+        : startTime - Long.parseLong(enqueuedAt);
+    log.info("EntityMatchingServlet: batch size: " + keyStrings.length + ", matched: "
+        + (entitiesToMatch.size() + deletedEntities.size()) + ", matching time: "
+        + (endTime - startTime) + " ms, queue delay: " + queueDelay + " ms");
+  }
+
+  /**
+   * Enqueues the specified keys of saved entities to be matched with subscriptions, in batches of
+   * {@link #MATCHING_BATCH_SIZE} keys.
+   *
+   * @param keys {@link Key}s of the saved CloudEntities, or of the tombstones of deleted ones
+   */
+  static void enqueueMatching(List<Key> keys) {
+    Queue matchingQueue = QueueFactory.getQueue("entity-matching");
+    String now = String.valueOf(System.currentTimeMillis());
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (int i = 0; i < keys.size(); i += MATCHING_BATCH_SIZE) {
+      List<String> batch = new ArrayList<String>();
+      for (Key k : keys.subList(i, Math.min(keys.size(), i + MATCHING_BATCH_SIZE))) {
+        batch.add(KeyFactory.keyToString(k));
+      }
+      tasks.add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url("/admin/prossearch/match")
+          .param("keys", gson.toJson(batch))
+          .param("enqueuedAt", now));
+      if (tasks.size() == MAX_TASKS_PER_ADD) {
+        matchingQueue.add(tasks);
+        tasks = new ArrayList<TaskOptions>();
+      }
+    }
+    if (!tasks.isEmpty()) {
+      matchingQueue.add(tasks);
+    }
+  }
+}
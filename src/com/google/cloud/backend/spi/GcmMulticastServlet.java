@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.InvalidRequestException;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.Sender;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.BackendConfigManager;
+import com.google.cloud.backend.config.StringUtility;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for sending one GCM message to many Android devices with a single multicast request.
+ *
+ * It is intended to be called by Push Task Queue, so that notification handling returns as soon
+ * as the sends are enqueued. Each result of a multicast is handled on its own: devices that are
+ * temporarily unavailable are retried by a new task with a back-off. Canonical registration ids
+ * and rejected devices of the whole multicast are processed together by one task, which migrates
+ * the subscriptions of the devices to their canonical ids and purges the dead registrations.
+ */
+public class GcmMulticastServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(GcmMulticastServlet.class.getName());
+  private static final Gson gson = new Gson();
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
+
+  /**
+   * The maximum number of registration ids in one GCM multicast request.
+   */
+  static final int MULTICAST_SIZE = 1000;
+
+  static final int GCM_SEND_RETRIES = 3;
+
+  /**
+   * Collapse key of all subscription notifications, which keeps a device within the limit of 4
+   * collapse keys that GCM stores for it while it is offline.
+   */
+  static final String COLLAPSE_KEY = "subscriptions";
+
+  // registration ids of a task are limited to stay below the task size limit of 100KB
+  private static final int MAX_REG_IDS_BYTES_PER_TASK = 90 * 1024;
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String payload = req.getParameter("payload");
+    String regIdsParameter = req.getParameter("regIds");
+    if (StringUtility.isNullOrEmpty(payload) || StringUtility.isNullOrEmpty(regIdsParameter)) {
+      log.warning("Missing 'payload' or 'regIds' argument on task queue request. "
+          + "This indicates a bug");
+      return;
+    }
+
+    List<String> regIds;
+    try {
+      regIds = Arrays.asList(gson.fromJson(regIdsParameter, String[].class));
+    } catch (JsonSyntaxException e) {
+      log.warning("Invalid format of 'regIds' argument on task queue request. "
+          + "This indicates a bug");
+      return;
+    }
+    List<String> payloads = Arrays.asList(payload);
+    String payloadsParameter = req.getParameter("payloads");
+    if (!StringUtility.isNullOrEmpty(payloadsParameter)) {
+      try {
+        payloads = Arrays.asList(gson.fromJson(payloadsParameter, String[].class));
+      } catch (JsonSyntaxException e) {
+        log.warning("Invalid format of 'payloads' argument on task queue request. "
+            + "This indicates a bug");
+        return;
+      }
+    }
+    String entities = req.getParameter("entities");
+    String attemptParameter = req.getParameter("attempt");
+    int attempt = StringUtility.isNullOrEmpty(attemptParameter) ? 0
+        : Integer.parseInt(attemptParameter);
+
+    String gcmKey = backendConfigManager.getGcmKey();
+    if (gcmKey == null || gcmKey.trim().length() == 0) {
+      log.info("GcmMulticastServlet: GCM is not sent because GcmKey is not set");
+      return;
+    }
+
+    // send the message to all the devices at once; an IOException lets Task Queue retry the task
+    Message message = createMessage(payloads, entities);
+    MulticastResult multicastResult;
+    try {
+      multicastResult = new Sender(gcmKey).sendNoRetry(message, regIds);
+    } catch (InvalidRequestException e) {
+      log.warning("GcmMulticastServlet: GCM rejected the request: " + e.getMessage());
+      return;
+    }
+
+    // handle the result of each device
+    List<String> regIdsToRetry = new ArrayList<String>();
+    List<String> regIdsToClear = new ArrayList<String>();
+    Map<String, String> canonicalIds = new HashMap<String, String>();
+    List<Result> results = multicastResult.getResults();
+    for (int i = 0; i < results.size(); i++) {
+      Result r = results.get(i);
+      String regId = regIds.get(i);
+      if (r.getMessageId() != null) {
+        if (r.getCanonicalRegistrationId() != null) {
+          canonicalIds.put(regId, r.getCanonicalRegistrationId());
+        }
+      } else if (Constants.ERROR_UNAVAILABLE.equals(r.getErrorCodeName())
+          || Constants.ERROR_INTERNAL_SERVER_ERROR.equals(r.getErrorCodeName())) {
+        regIdsToRetry.add(regId);
+      } else {
+        log.warning("GcmMulticastServlet: GCM error for device: " + regId + ", error: "
+            + r.getErrorCodeName());
+        regIdsToClear.add(regId);
+      }
+    }
+
+    if (!regIdsToRetry.isEmpty()) {
+      if (attempt < GCM_SEND_RETRIES) {
+        getQueue().add(createTask(payloads, regIdsToRetry, entities).param("attempt",
+            String.valueOf(attempt + 1)).countdownMillis(1000L << attempt));
+      } else {
+        log.warning("GcmMulticastServlet: GCM is not sent to " + regIdsToRetry.size()
+            + " unavailable devices after " + GCM_SEND_RETRIES + " retries");
+      }
+    }
+    if (!canonicalIds.isEmpty() || !regIdsToClear.isEmpty()) {
+      SubscriptionUtility.enqueueProcessGcmResults(canonicalIds, regIdsToClear);
+    }
+    log.info("GcmMulticastServlet: payload: " + payload + ", devices: " + regIds.size()
+        + ", sent: " + multicastResult.getSuccess() + ", canonical ids: "
+        + multicastResult.getCanonicalIds() + ", retried: " + regIdsToRetry.size()
+        + ", cleared: " + regIdsToClear.size());
+  }
+
+  /**
+   * Returns the GCM message for the specified payloads. The first payload is sent as the subId
+   * data, so that clients that read a single subscription keep working. A message for several
+   * subscriptions also lists all of them as the subIds data. Messages that carry subscription ids
+   * only share {@link #COLLAPSE_KEY}, as GCM only keeps a few collapse keys per device, so a device
+   * that is offline only receives the latest one and needs to refresh all its subscriptions.
+   * Matched entities, if any, are sent as the entities data, and such a message has no collapse
+   * key, so that a device that is offline doesn't lose the entities of the earlier ones.
+   */
+  static Message createMessage(List<String> payloads, String entities) {
+    Message.Builder builder = new Message.Builder()
+        .addData(SubscriptionUtility.GCM_KEY_SUBID, payloads.get(0));
+    if (payloads.size() > 1) {
+      builder.addData(SubscriptionUtility.GCM_KEY_SUBIDS, gson.toJson(payloads));
+    }
+    if (entities != null) {
+      builder.addData(SubscriptionUtility.GCM_KEY_ENTITIES, entities);
+    } else {
+      builder.collapseKey(COLLAPSE_KEY);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Enqueues the GCM message with the specified payload to be sent to the specified devices, in
+   * batches of at most {@link #MULTICAST_SIZE} registration ids.
+   *
+   * @param payload value of the subId data of the message
+   * @param regIds registration ids of the devices
+   */
+  static void enqueueMulticast(String payload, List<String> regIds) {
+    enqueueMulticast(Arrays.asList(payload), regIds, null);
+  }
+
+  /**
+   * Enqueues the GCM message for the specified payloads to be sent to the specified devices, in
+   * batches of at most {@link #MULTICAST_SIZE} registration ids.
+   *
+   * @param payloads payloads of the subscriptions the message notifies of
+   * @param regIds registration ids of the devices
+   * @param entities matched entities to send inline, or null
+   */
+  static void enqueueMulticast(List<String> payloads, List<String> regIds, String entities) {
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    List<String> batch = new ArrayList<String>();
+    int batchBytes = 0;
+    for (String regId : regIds) {
+      if (batch.size() == MULTICAST_SIZE
+          || batchBytes + regId.length() + 3 > MAX_REG_IDS_BYTES_PER_TASK) {
+        tasks.add(createTask(payloads, batch, entities));
+        batch = new ArrayList<String>();
+        batchBytes = 0;
+      }
+      batch.add(regId);
+      batchBytes += regId.length() + 3;
+    }
+    if (!batch.isEmpty()) {
+      tasks.add(createTask(payloads, batch, entities));
+    }
+    if (!tasks.isEmpty()) {
+      getQueue().add(tasks);
+    }
+  }
+
+  private static TaskOptions createTask(List<String> payloads, List<String> regIds,
+      String entities) {
+    TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/push/gcm/send")
+        .param("payload", payloads.get(0))
+        .param("regIds", gson.toJson(regIds));
+    if (payloads.size() > 1) {
+      task.param("payloads", gson.toJson(payloads));
+    }
+    if (entities != null) {
+      task.param("entities", entities);
+    }
+    return task;
+  }
+
+  private static Queue getQueue() {
+    return QueueFactory.getQueue("gcm-delivery");
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entities;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.config.BackendConfigManager;
+import com.google.cloud.backend.config.StringUtility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for backfilling the indexes of the properties and nested paths that have been
+ * indexed after CloudEntities of their kind were saved.
+ *
+ * It is intended to be called by Push Task Queue. A backfill writes each CloudEntity of the kind
+ * again with the current indexed properties and paths of the kind, a page at a time, in
+ * transactions so that concurrent saves are not overwritten. As CloudEntities are kept in the
+ * namespaces of their users, the namespaces are backfilled one after another, so that the
+ * backfill knows when it has finished and can clear the names being backfilled. A backfill stops
+ * as soon as a later one has been started for the same kind.
+ */
+public class IndexBackfillServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(IndexBackfillServlet.class.getName());
+
+  // the number of CloudEntities backfilled by a task
+  static final int PAGE_SIZE = 100;
+
+  // limit of the entity groups written in a single cross-group transaction
+  private static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 25;
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String kindName = req.getParameter("kindName");
+    String backfillIdParameter = req.getParameter("backfillId");
+    if (StringUtility.isNullOrEmpty(kindName)
+        || StringUtility.isNullOrEmpty(backfillIdParameter)) {
+      log.warning("Missing 'kindName' or 'backfillId' argument on task queue request. "
+          + "This indicates a bug");
+      return;
+    }
+    long backfillId = Long.parseLong(backfillIdParameter);
+    if (backfillId != backendConfigManager.getBackfillId(kindName)) {
+      log.info("IndexBackfillServlet: kind: " + kindName + ", superseded backfill stopped");
+      return;
+    }
+
+    Cursor namespaceCursor = null;
+    Cursor cursor = null;
+    try {
+      namespaceCursor = parseCursor(req.getParameter("namespaceCursor"));
+      cursor = parseCursor(req.getParameter("cursor"));
+    } catch (IllegalArgumentException e) {
+      log.warning("Invalid 'namespaceCursor' or 'cursor' argument on task queue request. "
+          + "This indicates a bug");
+      return;
+    }
+
+    // find the next namespace to backfill, or finish if there's none left
+    String namespace = req.getParameter("namespace");
+    if (namespace == null) {
+      FetchOptions fo = FetchOptions.Builder.withLimit(1);
+      if (namespaceCursor != null) {
+        fo.startCursor(namespaceCursor);
+      }
+      Query q = new Query(Entities.NAMESPACE_METADATA_KIND).setKeysOnly();
+      QueryResultList<Entity> page = datastore.prepare(q).asQueryResultList(fo);
+      if (page.isEmpty()) {
+        if (backendConfigManager.completeBackfill(kindName, backfillId)) {
+          log.info("IndexBackfillServlet: kind: " + kindName + ", backfill completed");
+        }
+        return;
+      }
+      namespace = Entities.getNamespaceFromNamespaceKey(page.get(0).getKey());
+      namespaceCursor = page.getCursor();
+    }
+
+    // backfill a page of the namespace, then continue with it or with the next namespace
+    FetchOptions fo = FetchOptions.Builder.withLimit(PAGE_SIZE);
+    if (cursor != null) {
+      fo.startCursor(cursor);
+    }
+    String origNamespace = NamespaceManager.get();
+    NamespaceManager.set(namespace);
+    Query q = new Query(kindName).setKeysOnly();
+    NamespaceManager.set(origNamespace);
+    QueryResultList<Entity> page = datastore.prepare(q).asQueryResultList(fo);
+    List<Key> keys = new ArrayList<Key>();
+    for (Entity e : page) {
+      keys.add(e.getKey());
+    }
+    backfill(kindName, keys);
+
+    TaskOptions task = createTask(kindName, backfillId)
+        .param("namespaceCursor", namespaceCursor.toWebSafeString());
+    if (page.size() == PAGE_SIZE) {
+      task.param("namespace", namespace).param("cursor", page.getCursor().toWebSafeString());
+    }
+    getQueue().add(task);
+    log.info("IndexBackfillServlet: kind: " + kindName + ", namespace: " + namespace
+        + ", backfilled: " + keys.size());
+  }
+
+  // writes the entities again with the current indexed properties and paths of the kind
+  private void backfill(String kindName, List<Key> keys) {
+    Set<String> indexedProperties = backendConfigManager.getIndexedProperties().get(kindName);
+    Set<String> indexedPaths = backendConfigManager.getIndexedPaths().get(kindName);
+    for (int i = 0; i < keys.size(); i += MAX_ENTITY_GROUPS_PER_TRANSACTION) {
+      List<Key> group = keys.subList(i,
+          Math.min(keys.size(), i + MAX_ENTITY_GROUPS_PER_TRANSACTION));
+      Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+      try {
+        Map<Key, Entity> entities = datastore.get(txn, group);
+        for (Entity e : entities.values()) {
+          EntityDto.createFromEntity(e).copyPropValuesToEntity(e, indexedProperties,
+              indexedPaths);
+        }
+        datastore.put(txn, entities.values());
+        txn.commit();
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+
+    // cached entities carry their old indexing, and cached query results miss them
+    if (!keys.isEmpty()) {
+      List<String> cacheKeys = new ArrayList<String>();
+      for (Key k : keys) {
+        cacheKeys.add(EntityCache.createCacheKey(k));
+      }
+      memcache.deleteAll(cacheKeys);
+      QueryCache.getInstance().invalidate(keys);
+    }
+  }
+
+  private static Cursor parseCursor(String cursorParameter) {
+    return StringUtility.isNullOrEmpty(cursorParameter) ? null
+        : Cursor.fromWebSafeString(cursorParameter);
+  }
+
+  /**
+   * Enqueues a backfill of the specified kind, if a backfill of it has been started by changing
+   * its indexed properties or paths.
+   *
+   * @param kindName name of the kind
+   */
+  public static void enqueueBackfill(String kindName) {
+    long backfillId = backendConfigManager.getBackfillId(kindName);
+    if (backfillId != 0) {
+      getQueue().add(createTask(kindName, backfillId));
+    }
+  }
+
+  private static TaskOptions createTask(String kindName, long backfillId) {
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/index/backfill")
+        .param("kindName", kindName)
+        .param("backfillId", String.valueOf(backfillId));
+  }
+
+  private static Queue getQueue() {
+    return QueueFactory.getQueue("index-backfill");
+  }
+}
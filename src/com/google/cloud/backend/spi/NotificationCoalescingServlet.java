@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.StringUtility;
+import com.google.cloud.backend.pushnotification.Utility;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for sending the notifications of a device that were collected over a coalescing
+ * window as one notification.
+ *
+ * Matched subscription ids are added to a pending set per device in Memcache with compare-and-set,
+ * and a task named after the device and the current window is enqueued to run at the end of the
+ * window. Only the first match of a device within a window enqueues a task; later ones find the
+ * task name taken. When the task runs, it takes the pending set and sends one notification that
+ * lists the subscriptions: a GCM message, or a single APNS alert that lists as many of them as fit
+ * into the APNS payload size limit.
+ */
+public class NotificationCoalescingServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log =
+      Logger.getLogger(NotificationCoalescingServlet.class.getName());
+
+  private static final String PENDING_KEY_PREFIX = "_PendingNotifications:";
+
+  // pending sets outlive their window, in case the task is delayed
+  private static final int PENDING_EXPIRATION_SEC = 60 * 60;
+
+  private static final int MAX_CAS_ATTEMPTS = 5;
+
+  // APNS payloads are limited to 256 bytes, including the JSON the alert is wrapped in
+  private static final int MAX_APNS_ALERT_BYTES = 200;
+
+  /**
+   * Alert sent in place of the subscriptions that don't fit into an APNS alert, which tells the
+   * client that other subscriptions have changed as well.
+   */
+  static final String GENERIC_ALERT = "changed";
+
+  // the maximum number of tasks that can be added to a queue at once
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private static final Gson gson = new Gson();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String regId = req.getParameter("regId");
+    if (StringUtility.isNullOrEmpty(regId)) {
+      log.warning("Missing 'regId' argument on task queue request. This indicates a bug");
+      return;
+    }
+
+    Set<String> subIds = takePending(regId);
+    if (subIds == null || subIds.isEmpty()) {
+      return;
+    }
+
+    // send one notification that lists the subscriptions
+    if (SubscriptionUtility.MobileType.IOS
+        == SubscriptionUtility.getMobileType(subIds.iterator().next())) {
+      Utility.enqueuePushAlert(createIosAlert(subIds), regId);
+    } else {
+      Set<String> payloads = new TreeSet<String>();
+      for (String subId : subIds) {
+        payloads.add(ProspectiveSearchServlet.createGcmPayload(subId));
+      }
+      GcmMulticastServlet.enqueueMulticast(new ArrayList<String>(payloads), Arrays.asList(regId),
+          null);
+    }
+    log.info("NotificationCoalescingServlet: device: " + regId + ", coalesced: "
+        + subIds.size());
+  }
+
+  /**
+   * Returns the APNS alert for the specified subscriptions. The first subscription is listed by
+   * its full id, as in an uncoalesced alert, so that clients that read a single subscription keep
+   * working; the others are listed by their GCM payloads, which hold the client subscription ids
+   * only. Subscriptions that don't fit into {@link #MAX_APNS_ALERT_BYTES} are replaced by
+   * {@link #GENERIC_ALERT}, as is the whole alert if not even the first one fits.
+   */
+  static String createIosAlert(Set<String> subIds) {
+    int suffixBytes = getAlertBytes("," + GENERIC_ALERT);
+    Iterator<String> it = subIds.iterator();
+    String first = it.next();
+    int alertBytes = getAlertBytes(first);
+    if (alertBytes + (it.hasNext() ? suffixBytes : 0) > MAX_APNS_ALERT_BYTES) {
+      return GENERIC_ALERT;
+    }
+    StringBuilder alert = new StringBuilder(first);
+    while (it.hasNext()) {
+      String element = "," + ProspectiveSearchServlet.createGcmPayload(it.next());
+      int elementBytes = getAlertBytes(element);
+      if (alertBytes + elementBytes + (it.hasNext() ? suffixBytes : 0) > MAX_APNS_ALERT_BYTES) {
+        alert.append(',').append(GENERIC_ALERT);
+        break;
+      }
+      alert.append(element);
+      alertBytes += elementBytes;
+    }
+    return alert.toString();
+  }
+
+  // returns the size of the string once escaped into the JSON of an APNS payload
+  private static int getAlertBytes(String s) {
+    return gson.toJson(s).getBytes(UTF_8).length - 2;
+  }
+
+  /**
+   * Adds the specified matched subscriptions to the pending sets of their devices, and enqueues a
+   * task for each device to send them at the end of the current window.
+   *
+   * @param subIdsByRegId matched subscription ids by registration id
+   * @param windowSec length of the coalescing window in seconds
+   */
+  static void enqueue(Map<String, List<String>> subIdsByRegId, int windowSec) {
+    addPending(subIdsByRegId);
+
+    long windowMillis = windowSec * 1000L;
+    long now = System.currentTimeMillis();
+    long window = now / windowMillis;
+    long countdownMillis = (window + 1) * windowMillis - now;
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (String regId : subIdsByRegId.keySet()) {
+      tasks.add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url("/admin/prossearch/coalesce")
+          .taskName("coalesce-" + QueryCache.hash(regId) + "-" + windowSec + "-" + window)
+          .countdownMillis(countdownMillis)
+          .param("regId", regId));
+      if (tasks.size() == MAX_TASKS_PER_ADD) {
+        addTasks(tasks);
+        tasks = new ArrayList<TaskOptions>();
+      }
+    }
+    if (!tasks.isEmpty()) {
+      addTasks(tasks);
+    }
+  }
+
+  // tasks of devices that already have one for the window are skipped, the others are added
+  private static void addTasks(List<TaskOptions> tasks) {
+    Queue coalescingQueue = QueueFactory.getQueue("notification-coalescing");
+    try {
+      coalescingQueue.add(tasks);
+    } catch (TaskAlreadyExistsException e) {
+      log.fine("NotificationCoalescingServlet: tasks already enqueued: "
+          + e.getTaskNames().size());
+    }
+  }
+
+  private static void addPending(Map<String, List<String>> subIdsByRegId) {
+    Map<String, List<String>> remaining = new HashMap<String, List<String>>();
+    for (Map.Entry<String, List<String>> entry : subIdsByRegId.entrySet()) {
+      remaining.put(PENDING_KEY_PREFIX + entry.getKey(), entry.getValue());
+    }
+    Expiration expiration = Expiration.byDeltaSeconds(PENDING_EXPIRATION_SEC);
+
+    for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS && !remaining.isEmpty(); attempt++) {
+      Map<String, IdentifiableValue> current = memcache.getIdentifiables(remaining.keySet());
+
+      // add new sets for devices without one, and compare-and-set the others
+      Map<String, Object> newSets = new HashMap<String, Object>();
+      Map<String, CasValues> updates = new HashMap<String, CasValues>();
+      for (Map.Entry<String, List<String>> entry : remaining.entrySet()) {
+        IdentifiableValue value = current.get(entry.getKey());
+        if (value == null) {
+          newSets.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+        } else {
+          @SuppressWarnings("unchecked")
+          Set<String> subIds = new HashSet<String>((Set<String>) value.getValue());
+          subIds.addAll(entry.getValue());
+          updates.put(entry.getKey(), new CasValues(value, subIds, expiration));
+        }
+      }
+      Set<String> stored = new HashSet<String>();
+      if (!newSets.isEmpty()) {
+        stored.addAll(memcache.putAll(newSets, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+      }
+      if (!updates.isEmpty()) {
+        stored.addAll(memcache.putIfUntouched(updates));
+      }
+      remaining.keySet().removeAll(stored);
+    }
+    if (!remaining.isEmpty()) {
+      log.warning("NotificationCoalescingServlet: couldn't add pending notifications of "
+          + remaining.size() + " devices");
+    }
+  }
+
+  // returns the pending subscription ids of the device and clears them
+  private static Set<String> takePending(String regId) {
+    String key = PENDING_KEY_PREFIX + regId;
+    for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+      IdentifiableValue value = memcache.getIdentifiable(key);
+      if (value == null) {
+        return null;
+      }
+      if (memcache.putIfUntouched(key, value, new HashSet<String>(),
+          Expiration.byDeltaSeconds(PENDING_EXPIRATION_SEC))) {
+        @SuppressWarnings("unchecked")
+        Set<String> subIds = (Set<String>) value.getValue();
+        return subIds;
+      }
+    }
+    log.warning("NotificationCoalescingServlet: couldn't take pending notifications of " + regId);
+    return null;
+  }
+}
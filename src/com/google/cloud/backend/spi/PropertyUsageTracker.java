@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entities;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Records which properties of each kind are used in the filters and sort orders of queries, so
+ * that properties nobody queries can be configured to be stored unindexed.
+ *
+ * The names of the used properties are stored in Datastore, one entity per kind, and are only
+ * written when an instance sees a property for the first time. The number of uses is counted in
+ * Memcache, so counts may be lost on eviction while the names are kept.
+ */
+public class PropertyUsageTracker {
+
+  static final String PROPERTY_USAGE_KIND = "_PropertyUsage";
+
+  static final String PROPERTY_PROPERTIES = "Properties";
+
+  private static final String COUNT_KEY_PREFIX = "_PropertyUsage:";
+
+  private static final Logger log = Logger.getLogger(PropertyUsageTracker.class.getName());
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final AsyncMemcacheService asyncMemcache = MemcacheServiceFactory
+      .getAsyncMemcacheService();
+
+  private static final PropertyUsageTracker _instance = new PropertyUsageTracker();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  public static PropertyUsageTracker getInstance() {
+    return _instance;
+  }
+
+  // kind and property names this instance knows to be stored, as "kind/property"
+  private final Set<String> knownProperties = new HashSet<String>();
+
+  private PropertyUsageTracker() {
+  }
+
+  /**
+   * Records a use of the specified properties of a kind by a query.
+   *
+   * @param kindName
+   *          name of the queried kind.
+   * @param propNames
+   *          names of the properties in the filters and sort orders of the query.
+   */
+  void record(String kindName, Collection<String> propNames) {
+    List<String> newPropNames = new ArrayList<String>();
+    for (String propName : propNames) {
+      asyncMemcache.increment(createCountKey(kindName, propName), 1, 0L);
+      synchronized (knownProperties) {
+        if (!knownProperties.contains(kindName + "/" + propName)) {
+          newPropNames.add(propName);
+        }
+      }
+    }
+    if (newPropNames.isEmpty()) {
+      return;
+    }
+
+    // add the new names to the kind's entity
+    Key key = KeyFactory.createKey(PROPERTY_USAGE_KIND, kindName);
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity usage;
+      try {
+        usage = datastore.get(txn, key);
+      } catch (EntityNotFoundException e) {
+        usage = new Entity(key);
+      }
+      Set<String> stored = readPropNames(usage);
+      if (!stored.containsAll(newPropNames)) {
+        stored.addAll(newPropNames);
+        usage.setUnindexedProperty(PROPERTY_PROPERTIES, new ArrayList<String>(stored));
+        datastore.put(txn, usage);
+      }
+      txn.commit();
+    } catch (ConcurrentModificationException e) {
+      log.info("PropertyUsageTracker: usage of kind " + kindName + " is being updated");
+      return;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    synchronized (knownProperties) {
+      for (String propName : newPropNames) {
+        knownProperties.add(kindName + "/" + propName);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of uses of each property that has been used in queries, by kind name and
+   * property name. The count of a property is 0 if it has been evicted from Memcache.
+   */
+  public Map<String, Map<String, Long>> getUsedProperties() {
+    Map<String, Set<String>> propNamesByKind = new TreeMap<String, Set<String>>();
+    List<String> countKeys = new ArrayList<String>();
+    for (Entity usage : datastore.prepare(new Query(PROPERTY_USAGE_KIND)).asIterable()) {
+      String kindName = usage.getKey().getName();
+      Set<String> propNames = readPropNames(usage);
+      propNamesByKind.put(kindName, propNames);
+      for (String propName : propNames) {
+        countKeys.add(createCountKey(kindName, propName));
+      }
+    }
+    Map<String, Object> counts = memcache.getAll(countKeys);
+
+    Map<String, Map<String, Long>> usedProperties = new TreeMap<String, Map<String, Long>>();
+    for (Map.Entry<String, Set<String>> entry : propNamesByKind.entrySet()) {
+      Map<String, Long> kindUsage = new TreeMap<String, Long>();
+      for (String propName : entry.getValue()) {
+        Object count = counts.get(createCountKey(entry.getKey(), propName));
+        kindUsage.put(propName, count == null ? 0L : (Long) count);
+      }
+      usedProperties.put(entry.getKey(), kindUsage);
+    }
+    return usedProperties;
+  }
+
+  /**
+   * Returns the names of the indexed properties of each kind in the default namespace, by kind
+   * name, as reported by the Datastore metadata. Kinds and properties whose names start with "_"
+   * are left out.
+   */
+  public Map<String, Set<String>> getStoredIndexedProperties() {
+    Map<String, Set<String>> indexedProperties = new TreeMap<String, Set<String>>();
+    Query q = new Query(Entities.PROPERTY_METADATA_KIND).setKeysOnly();
+    for (Entity e : datastore.prepare(q).asIterable()) {
+      String kindName = e.getKey().getParent().getName();
+      String propName = e.getKey().getName();
+      if (kindName.startsWith("_") || propName.startsWith("_")) {
+        continue;
+      }
+      Set<String> propNames = indexedProperties.get(kindName);
+      if (propNames == null) {
+        propNames = new TreeSet<String>();
+        indexedProperties.put(kindName, propNames);
+      }
+      propNames.add(propName);
+    }
+    return indexedProperties;
+  }
+
+  private static Set<String> readPropNames(Entity usage) {
+    Set<String> propNames = new TreeSet<String>();
+    Collection<?> stored = (Collection<?>) usage.getProperty(PROPERTY_PROPERTIES);
+    if (stored != null) {
+      for (Object propName : stored) {
+        propNames.add((String) propName);
+      }
+    }
+    return propNames;
+  }
+
+  private static String createCountKey(String kindName, String propName) {
+    return COUNT_KEY_PREFIX + kindName + "/" + propName;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
+import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
+import com.google.appengine.api.prospectivesearch.Subscription;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for removing the subscriptions that were made through the Prospective Search API
+ * before subscriptions were matched by {@link SubscriptionMatcher}.
+ *
+ * It is run once by an administrator, who opens it to start the migration, and then by Push Task
+ * Queue. Each task removes a page of the old subscriptions and sends a push notification for each
+ * of them, as clients run the query of a subscription again when notified of it, which subscribes
+ * them to {@link SubscriptionMatcher}.
+ */
+public class ProspectiveSearchMigrationServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(
+      ProspectiveSearchMigrationServlet.class.getName());
+
+  /**
+   * Name of the Prospective Search topic the old subscriptions were made on.
+   */
+  static final String PROS_SEARCH_DEFAULT_TOPIC = "defaultTopic";
+
+  // the number of subscriptions removed by a task
+  static final int PAGE_SIZE = 500;
+
+  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
+      .getProspectiveSearchService();
+
+  /**
+   * Handles the GET request of an administrator
+   */
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    getQueue().add(createTask());
+    res.getWriter().println("Migration of Prospective Search subscriptions started");
+  }
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String subIdStart = req.getParameter("subIdStart");
+    List<Subscription> page = prosSearch.listSubscriptions(PROS_SEARCH_DEFAULT_TOPIC,
+        subIdStart == null ? "" : subIdStart, PAGE_SIZE, 0);
+    List<String> subIds = new ArrayList<String>();
+    for (Subscription s : page) {
+      prosSearch.unsubscribe(PROS_SEARCH_DEFAULT_TOPIC, s.getId());
+      subIds.add(s.getId());
+    }
+    if (!subIds.isEmpty()) {
+      ProspectiveSearchServlet.enqueueNotifications(subIds, null);
+    }
+
+    if (page.size() == PAGE_SIZE) {
+      getQueue().add(createTask().param("subIdStart", subIds.get(subIds.size() - 1)));
+    }
+    log.info("ProspectiveSearchMigrationServlet: removed: " + subIds.size());
+  }
+
+  private static TaskOptions createTask() {
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/prossearch/migrate");
+  }
+
+  private static Queue getQueue() {
+    return QueueFactory.getQueue("prossearch-migration");
+  }
+}
@@ -13,17 +13,24 @@
  */
 package com.google.cloud.backend.spi;
 
-import com.google.android.gcm.server.Message;
-import com.google.android.gcm.server.Result;
-import com.google.android.gcm.server.Sender;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.pushnotification.Utility;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
@@ -31,12 +38,25 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A servlet class for handling Prospective Search API tasks.
+ * A servlet class for sending push notifications to the subscribers of matched queries.
+ * Android devices that are sent the same payload are grouped into GCM multicast requests, which
+ * are sent by {@link GcmMulticastServlet}. If a coalescing window is configured, the notifications
+ * of each device are collected over the window by {@link NotificationCoalescingServlet} instead.
+ * Matched entities are sent inline only in uncoalesced GCM messages; APNS alerts and coalesced
+ * notifications carry subscription ids only.
+ *
+ * It handles the notification tasks enqueued by
+ * {@link #enqueueNotifications(Collection, String)}, as well as the callbacks of the Prospective
+ * Search API for subscriptions made through it.
  */
 @SuppressWarnings("serial")
 public class ProspectiveSearchServlet extends HttpServlet {
 
-  private static final int GCM_SEND_RETRIES = 3;
+  // the maximum number of subIds per notification task
+  private static final int NOTIFICATION_BATCH_SIZE = 100;
+
+  // the maximum number of tasks that can be added to a queue at once
+  private static final int MAX_TASKS_PER_ADD = 100;
 
   private static final Logger log = Logger.getLogger(ProspectiveSearchServlet.class.getName());
 
@@ -53,44 +73,113 @@ public class ProspectiveSearchServlet extends HttpServlet {
       return;
     }
 
-    // dispatch GCM messages to each subscribers
-    String[] subIds = req.getParameterValues("id");
+    // Read the configuration once for all subscribers
+    Date lastDeleteAll = backendConfigManager.getLastSubscriptionDeleteAllTime();
+    String gcmKey = backendConfigManager.getGcmKey();
+    int coalescingWindowSec = backendConfigManager.getNotificationCoalescingWindowSec();
+
     // Each subId has this format "<regId>:query:<clientSubId>"
+    String[] subIds = req.getParameterValues("id");
+    String entities = req.getParameter("entities");
+    Map<String, String> regIdsBySubId = new LinkedHashMap<String, String>();
     for (String subId : subIds) {
-      String regId = SubscriptionUtility.extractRegId(subId);
-      if (isSubscriptionActive(regId)) {
-        sendPushNotification(regId, subId);
+      regIdsBySubId.put(subId, SubscriptionUtility.extractRegId(subId));
+    }
+
+    // Load the devices with batch calls; they are needed only if all subscriptions were deleted
+    Map<String, Entity> devices = null;
+    if (lastDeleteAll != null) {
+      devices = deviceSubscription.getAll(new HashSet<String>(regIdsBySubId.values()));
+    }
+
+    // group Android subscribers by GCM payload, or all subscribers by device if notifications are
+    // coalesced, and clean up inactive devices in bulk
+    Map<String, List<String>> regIdsByGcmPayload = new LinkedHashMap<String, List<String>>();
+    Map<String, List<String>> subIdsByRegId = new LinkedHashMap<String, List<String>>();
+    Set<String> regIdsToClear = new LinkedHashSet<String>();
+    for (Map.Entry<String, String> entry : regIdsBySubId.entrySet()) {
+      String subId = entry.getKey();
+      String regId = entry.getValue();
+      if (lastDeleteAll != null && !isSubscriptionActive(devices.get(regId), lastDeleteAll)) {
+        regIdsToClear.add(regId);
+      } else if (coalescingWindowSec > 0) {
+        addToGroup(subIdsByRegId, regId, subId);
+      } else if (SubscriptionUtility.MobileType.IOS == SubscriptionUtility.getMobileType(subId)) {
+        sendIosAlert(subId, new String[] {regId});
       } else {
-        SubscriptionUtility.clearSubscriptionAndDeviceEntity(Arrays.asList(regId));
+        addToGroup(regIdsByGcmPayload, createGcmPayload(subId), regId);
       }
     }
+    if (!subIdsByRegId.isEmpty()) {
+      NotificationCoalescingServlet.enqueue(subIdsByRegId, coalescingWindowSec);
+    }
+    enqueueGcmAlerts(regIdsByGcmPayload, entities, gcmKey);
+    if (!regIdsToClear.isEmpty()) {
+      SubscriptionUtility.enqueueClearSubscriptionAndDeviceEntity(
+          new ArrayList<String>(regIdsToClear));
+    }
   }
 
-  private void sendPushNotification(String regId, String subId) throws IOException {
-    SubscriptionUtility.MobileType type = SubscriptionUtility.getMobileType(subId);
+  private static void addToGroup(Map<String, List<String>> groups, String key, String value) {
+    List<String> group = groups.get(key);
+    if (group == null) {
+      group = new ArrayList<String>();
+      groups.put(key, group);
+    }
+    group.add(value);
+  }
 
-    if (SubscriptionUtility.MobileType.ANDROID == type) {
-      sendGcmAlert(subId, regId);
-    } else if (SubscriptionUtility.MobileType.IOS == type) {
-      sendIosAlert(subId, new String[] {regId});
+  /**
+   * Returns the GCM payload of the specified subscription, which is the subscription id without
+   * the registration id: ":query:<clientSubId>". Clients only read the type and the client
+   * subscription id from it, so all devices subscribed with the same client subscription id can
+   * be sent the same message.
+   */
+  static String createGcmPayload(String subId) {
+    int i = subId.indexOf(':');
+    return i < 0 ? subId : subId.substring(i);
+  }
+
+  /**
+   * Enqueues push notifications for the specified matched subscriptions, in batches of
+   * {@link #NOTIFICATION_BATCH_SIZE} subIds.
+   *
+   * @param subIds ids of the matched subscriptions
+   * @param entities matched entities to send inline to Android devices, or null
+   */
+  static void enqueueNotifications(Collection<String> subIds, String entities) {
+    Queue notificationQueue = QueueFactory.getQueue("subscription-notification");
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    TaskOptions task = null;
+    int batchSize = 0;
+    for (String subId : subIds) {
+      if (task == null) {
+        task = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+            .url("/admin/prossearch/notify");
+        if (entities != null) {
+          task.param("entities", entities);
+        }
+        tasks.add(task);
+      }
+      task.param("id", subId);
+      if (++batchSize == NOTIFICATION_BATCH_SIZE) {
+        task = null;
+        batchSize = 0;
+      }
+    }
+    for (int i = 0; i < tasks.size(); i += MAX_TASKS_PER_ADD) {
+      notificationQueue.add(tasks.subList(i, Math.min(tasks.size(), i + MAX_TASKS_PER_ADD)));
     }
   }
 
   /**
    * Checks if subscriptions for the device are active.
    *
-   * @param deviceId A unique device identifier
+   * @param deviceEntity Entity with device subscription information, or null if not found
+   * @param lastDeleteAll Time the admin last requested to delete all subscriptions
    * @return True, if subscriptions are active; False, the otherwise
    */
-  private boolean isSubscriptionActive(String deviceId) {
-    Date lastDeleteAll = backendConfigManager.getLastSubscriptionDeleteAllTime();
-    // If the admin never requested to delete all subscriptions, then this device subscription is
-    // still active.
-    if (lastDeleteAll == null) {
-      return true;
-    }
-
-    Entity deviceEntity = deviceSubscription.get(deviceId);
+  private boolean isSubscriptionActive(Entity deviceEntity, Date lastDeleteAll) {
     if (deviceEntity == null) {
       return false;
     }
@@ -100,29 +189,22 @@ public class ProspectiveSearchServlet extends HttpServlet {
     return latestSubscriptionTime.after(lastDeleteAll);
   }
 
-  private void sendGcmAlert(String subId, String regId)
-      throws IOException {
-    String gcmKey = backendConfigManager.getGcmKey();
+  private void enqueueGcmAlerts(Map<String, List<String>> regIdsByGcmPayload, String entities,
+      String gcmKey) {
+    if (regIdsByGcmPayload.isEmpty()) {
+      return;
+    }
     boolean isGcmKeySet = !(gcmKey == null || gcmKey.trim().length() == 0);
 
     // Only attempt to send GCM if GcmKey is available
     if (isGcmKeySet) {
-      Sender sender = new Sender(gcmKey);
-      Message message = new Message.Builder().addData(SubscriptionUtility.GCM_KEY_SUBID, subId)
-          .build();
-      Result r = sender.send(message, regId, GCM_SEND_RETRIES);
-      if (r.getMessageId() != null) {
-        log.info("ProspectiveSearchServlet: GCM sent: subId: " + subId);
-      } else {
-        log.warning("ProspectiveSearchServlet: GCM error for subId: " + subId +
-            ", senderId: " + gcmKey + ", error: " + r.getErrorCodeName());
-        ArrayList<String> deviceIds = new ArrayList<String>();
-        deviceIds.add(regId);
-        SubscriptionUtility.clearSubscriptionAndDeviceEntity(deviceIds);
+      for (Map.Entry<String, List<String>> entry : regIdsByGcmPayload.entrySet()) {
+        GcmMulticastServlet.enqueueMulticast(Arrays.asList(entry.getKey()), entry.getValue(),
+            entities);
       }
     } else {
       // Otherwise, just write a log entry
-      log.info(String.format("ProspectiveSearchServlet: GCM is not sent: GcmKey: %s ", 
+      log.info(String.format("ProspectiveSearchServlet: GCM is not sent: GcmKey: %s ",
           isGcmKeySet));
     }
   }
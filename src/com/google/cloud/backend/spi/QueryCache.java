@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.cloud.backend.beans.CompiledFilter;
+import com.google.cloud.backend.beans.FilterDto;
+import com.google.cloud.backend.beans.QueryDto;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Caches the result keys of CloudEntity queries in Memcache.
+ *
+ * Results are cached under a hash of the canonical form of the {@link QueryDto} and its namespace,
+ * together with the generation of the namespace and kind at the time the query was executed.
+ * {@link CrudOperations} bumps the generation of a kind whenever entities of the kind are saved or
+ * deleted, so that all the cached results of the kind become stale at once.
+ *
+ * As queries are eventually consistent, a query executed right after a write may not see it yet.
+ * The time of the last generation change is kept along with the generation, and results of queries
+ * executed within {@link #CONSISTENCY_WINDOW_MILLIS} of it are not cached, so that such a result
+ * isn't served for the lifetime of the cache entry.
+ */
+class QueryCache {
+
+  static final int EXPIRATION_SEC = 10 * 60;
+
+  // time for a write to show up in the results of queries
+  static final long CONSISTENCY_WINDOW_MILLIS = 10 * 1000;
+
+  // number of lookups of a kind between two hit rate reports
+  private static final int REPORT_INTERVAL = 1000;
+
+  private static final String RESULT_KEY_PREFIX = "QC/";
+
+  private static final String GENERATION_KEY_PREFIX = "_QueryCacheGeneration:";
+
+  private static final String GENERATION_TIME_KEY_PREFIX = "_QueryCacheGenerationTime:";
+
+  private static final Logger log = Logger.getLogger(QueryCache.class.getName());
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final AsyncMemcacheService asyncMemcache = MemcacheServiceFactory
+      .getAsyncMemcacheService();
+
+  private static final QueryCache _instance = new QueryCache();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static QueryCache getInstance() {
+    return _instance;
+  }
+
+  // hits and misses per kind name
+  private final Map<String, long[]> counters = new HashMap<String, long[]>();
+
+  private QueryCache() {
+  }
+
+  /**
+   * Result keys of a query, as stored in Memcache.
+   */
+  private static class CachedResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final long generation;
+    final List<Key> keys;
+    final String nextCursor;
+
+    CachedResult(long generation, List<Key> keys, String nextCursor) {
+      this.generation = generation;
+      this.keys = keys;
+      this.nextCursor = nextCursor;
+    }
+  }
+
+  /**
+   * Result of a lookup with {@link QueryCache#get(String, QueryDto)}. A miss can be passed to
+   * {@link QueryCache#put(Lookup, List, String)} once the query has been executed.
+   */
+  static class Lookup {
+    private final String resultKey;
+    private final Long generation;
+    private final boolean isCacheable;
+    private final CachedResult result;
+
+    private Lookup(String resultKey, Long generation, boolean isCacheable, CachedResult result) {
+      this.resultKey = resultKey;
+      this.generation = generation;
+      this.isCacheable = isCacheable;
+      this.result = result;
+    }
+
+    boolean isHit() {
+      return result != null;
+    }
+
+    List<Key> getKeys() {
+      return result.keys;
+    }
+
+    String getNextCursor() {
+      return result.nextCursor;
+    }
+  }
+
+  /**
+   * Looks up the cached result keys of the specified query with a single Memcache call.
+   *
+   * @param namespace
+   *          namespace the query is executed in.
+   * @param queryDto
+   *          {@link QueryDto} to look up.
+   */
+  Lookup get(String namespace, QueryDto queryDto) {
+    String generationKey = createGenerationKey(namespace, queryDto.getKindName());
+    String generationTimeKey = createGenerationTimeKey(namespace, queryDto.getKindName());
+    String resultKey = RESULT_KEY_PREFIX + hash(namespace + "|" + toCanonicalString(queryDto));
+    Map<String, Object> values = memcache.getAll(Arrays.asList(generationKey, generationTimeKey,
+        resultKey));
+
+    // start a new generation if it has been evicted, as the cached results may be stale
+    long now = System.currentTimeMillis();
+    Long generation = (Long) values.get(generationKey);
+    if (generation == null) {
+      memcache.put(generationKey, now, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    Long generationTime = (Long) values.get(generationTimeKey);
+    if (generationTime == null) {
+      memcache.put(generationTimeKey, now, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    boolean isCacheable = generation != null && generationTime != null
+        && now - generationTime >= CONSISTENCY_WINDOW_MILLIS;
+
+    CachedResult result = (CachedResult) values.get(resultKey);
+    if (result != null && (generation == null || result.generation != generation)) {
+      result = null;
+    }
+    count(queryDto.getKindName(), result != null);
+    return new Lookup(resultKey, generation, isCacheable, result);
+  }
+
+  /**
+   * Caches the result keys of a query that has missed the cache. The result is not cached if the
+   * generation of the kind was unknown at the time of the lookup, or had changed too recently for
+   * the query to see the changes.
+   */
+  void put(Lookup lookup, List<Key> keys, String nextCursor) {
+    if (!lookup.isCacheable) {
+      return;
+    }
+    asyncMemcache.put(lookup.resultKey, new CachedResult(lookup.generation,
+        new ArrayList<Key>(keys), nextCursor), Expiration.byDeltaSeconds(EXPIRATION_SEC));
+  }
+
+  /**
+   * Makes the cached results of all queries on the kinds of the specified keys stale.
+   *
+   * @param keys
+   *          {@link Key}s of the saved or deleted CloudEntities.
+   */
+  void invalidate(Collection<Key> keys) {
+    Set<String> kindScopes = new HashSet<String>();
+    for (Key key : keys) {
+      kindScopes.add(createKindScope(key.getNamespace(), key.getKind()));
+    }
+
+    // the time is updated first, so that a lookup that sees the new generation also sees it
+    long now = System.currentTimeMillis();
+    Map<String, Long> generationTimes = new HashMap<String, Long>();
+    for (String kindScope : kindScopes) {
+      generationTimes.put(GENERATION_TIME_KEY_PREFIX + kindScope, now);
+    }
+    CrudOperations.waitFor(asyncMemcache.putAll(generationTimes));
+    List<Future<Long>> futures = new ArrayList<Future<Long>>();
+    for (String kindScope : kindScopes) {
+      futures.add(asyncMemcache.increment(GENERATION_KEY_PREFIX + kindScope, 1, now));
+    }
+    for (Future<Long> future : futures) {
+      CrudOperations.waitFor(future);
+    }
+  }
+
+  // namespaces can't contain "/"
+  private static String createKindScope(String namespace, String kindName) {
+    return namespace + "/" + kindName;
+  }
+
+  private static String createGenerationKey(String namespace, String kindName) {
+    return GENERATION_KEY_PREFIX + createKindScope(namespace, kindName);
+  }
+
+  private static String createGenerationTimeKey(String namespace, String kindName) {
+    return GENERATION_TIME_KEY_PREFIX + createKindScope(namespace, kindName);
+  }
+
+  private void count(String kindName, boolean isHit) {
+    long hits;
+    long misses;
+    synchronized (counters) {
+      long[] c = counters.get(kindName);
+      if (c == null) {
+        c = new long[2];
+        counters.put(kindName, c);
+      }
+      c[isHit ? 0 : 1]++;
+      hits = c[0];
+      misses = c[1];
+    }
+    if ((hits + misses) % REPORT_INTERVAL == 0) {
+      log.info("QueryCache: kind: " + kindName + ", hits: " + hits + ", misses: " + misses
+          + ", hit rate: " + (hits * 100 / (hits + misses)) + "%");
+    }
+  }
+
+  /**
+   * Returns a String that is equal for all queries that return the same results, and differs for
+   * queries that may not. Every value is type-tagged and length-prefixed.
+   */
+  static String toCanonicalString(QueryDto queryDto) {
+    StringBuilder sb = new StringBuilder();
+    CompiledFilter.appendCanonicalValue(sb, queryDto.getKindName());
+    sb.append('|');
+    if (queryDto.getFilterDto() != null) {
+      CompiledFilter.appendCanonicalValue(sb, toCanonicalString(queryDto.getFilterDto()));
+    }
+    sb.append('|');
+    CompiledFilter.appendCanonicalValue(sb, queryDto.getSortedPropertyName());
+    sb.append('|');
+    CompiledFilter.appendCanonicalValue(sb, queryDto.isSortAscending());
+    sb.append('|');
+    CompiledFilter.appendCanonicalValue(sb, queryDto.getLimit());
+    sb.append('|');
+    CompiledFilter.appendCanonicalValue(sb, queryDto.getStartCursor());
+    sb.append('|');
+    CompiledFilter.appendCanonicalValue(sb, queryDto.getEndCursor());
+    return sb.toString();
+  }
+
+  // operands of AND and OR are sorted, as their order doesn't change the result
+  private static String toCanonicalString(FilterDto filter) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(filter.getOperator()).append('(');
+    if (filter.getSubfilters() != null) {
+      List<String> subfilters = new ArrayList<String>();
+      for (FilterDto subfilter : filter.getSubfilters()) {
+        subfilters.add(toCanonicalString(subfilter));
+      }
+      Collections.sort(subfilters);
+      for (String subfilter : subfilters) {
+        CompiledFilter.appendCanonicalValue(sb, subfilter);
+        sb.append(',');
+      }
+    }
+    if (filter.getValues() != null) {
+      for (Object value : filter.getValues()) {
+        CompiledFilter.appendCanonicalValue(sb, value);
+        sb.append(',');
+      }
+    }
+    return sb.append(')').toString();
+  }
+
+  /**
+   * Returns the SHA-1 hash of the specified String as a hex string.
+   */
+  static String hash(String s) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
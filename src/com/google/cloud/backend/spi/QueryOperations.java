@@ -13,27 +13,37 @@
  */
 package com.google.cloud.backend.spi;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.RawValue;
 import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.prospectivesearch.FieldType;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
 import com.google.appengine.api.users.User;
 import com.google.cloud.backend.beans.EntityDto;
 import com.google.cloud.backend.beans.EntityListDto;
 import com.google.cloud.backend.beans.FilterDto;
 import com.google.cloud.backend.beans.QueryDto;
 import com.google.cloud.backend.beans.QueryDto.Scope;
+import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.config.StringUtility;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -42,18 +52,35 @@ import java.util.logging.Logger;
  */
 public class QueryOperations {
 
-  /**
-   * Name of Topic for GCM that will be used in CloudBackend as default.
-   */
-  public static final String PROS_SEARCH_DEFAULT_TOPIC = "defaultTopic";
-
   // by default subscription will not expire, which is indicated with a duration of 0 second
-  private static final int PROS_SEARCH_DURATION_SEC = 0;
+  private static final int SUBSCRIPTION_DURATION_SEC = 0;
+
+  // types of the metadata properties, which can be projected as typed values
+  private static final Map<String, Class<?>> METADATA_PROPERTY_TYPES =
+      new HashMap<String, Class<?>>();
+
+  static {
+    METADATA_PROPERTY_TYPES.put(EntityDto.PROP_CREATED_AT, Date.class);
+    METADATA_PROPERTY_TYPES.put(EntityDto.PROP_UPDATED_AT, Date.class);
+    METADATA_PROPERTY_TYPES.put(EntityDto.PROP_CREATED_BY, String.class);
+    METADATA_PROPERTY_TYPES.put(EntityDto.PROP_UPDATED_BY, String.class);
+    METADATA_PROPERTY_TYPES.put(EntityDto.PROP_OWNER, String.class);
+    METADATA_PROPERTY_TYPES.put(EntityDto.PROP_KIND_NAME, String.class);
+  }
 
   private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
 
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
+  private static final SubscriptionMatcher subscriptionMatcher = SubscriptionMatcher
+      .getInstance();
+
+  private static final QueryCache queryCache = QueryCache.getInstance();
+
+  private static final QueryPlanner queryPlanner = QueryPlanner.getInstance();
+
+  private static final PropertyUsageTracker propertyUsageTracker = PropertyUsageTracker
+      .getInstance();
+
+  private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
 
   private static final Logger log = Logger.getLogger(QueryOperations.class.getCanonicalName());
 
@@ -79,6 +106,9 @@ public class QueryOperations {
           "queryDto.regId cannot be null when scope includes FUTURE queries.");
     }
 
+    // query nested paths on their shadow properties
+    resolveNestedPaths(queryDto);
+
     // execute query for past entities
     EntityListDto cdl;
     if (queryDto.getScope() == Scope.PAST || queryDto.getScope() == Scope.FUTURE_AND_PAST) {
@@ -89,20 +119,92 @@ public class QueryOperations {
 
     // add subscriber for future updates
     if (queryDto.getScope() == Scope.FUTURE || queryDto.getScope() == Scope.FUTURE_AND_PAST) {
-      addQuerySubscriber(queryDto);
+      addQuerySubscriber(queryDto, user);
     }
 
     return cdl;
   }
 
+  /**
+   * Replaces the names in the filters and sort order of the specified query that are nested paths
+   * configured for its kind, such as "address.city", with the names of their shadow properties.
+   * Other names are left as they are, including those of plain properties that contain "." or
+   * "[]", and names that already have the shadow property prefix.
+   *
+   * @param queryDto
+   *          {@link QueryDto} to resolve the names of.
+   */
+  static void resolveNestedPaths(QueryDto queryDto) {
+    Set<String> indexedPaths = backendConfigManager.getIndexedPaths().get(
+        queryDto.getKindName());
+    if (indexedPaths == null || indexedPaths.isEmpty()) {
+      return;
+    }
+    if (queryDto.getFilterDto() != null) {
+      resolveNestedPaths(queryDto.getFilterDto(), indexedPaths);
+    }
+    if (indexedPaths.contains(queryDto.getSortedPropertyName())) {
+      queryDto.setSortedPropertyName(EntityDto.PROP_INDEXED_PREFIX_PATH
+          + queryDto.getSortedPropertyName());
+    }
+  }
+
+  private static void resolveNestedPaths(FilterDto filter, Set<String> indexedPaths) {
+    if (filter.getSubfilters() != null) {
+      for (FilterDto subfilter : filter.getSubfilters()) {
+        resolveNestedPaths(subfilter, indexedPaths);
+      }
+    }
+    List<Object> values = filter.getValues();
+    if (values != null && !values.isEmpty() && indexedPaths.contains(values.get(0))) {
+      List<Object> resolved = new ArrayList<Object>(values);
+      resolved.set(0, EntityDto.PROP_INDEXED_PREFIX_PATH + values.get(0));
+      filter.setValues(resolved);
+    }
+  }
+
   private EntityListDto executeQuery(QueryDto queryDto, User user) {
     // check if kindName is not the config kinds
     SecurityChecker.getInstance().checkIfKindNameAccessible(queryDto.getKindName());
 
+    // check that the queried properties and nested paths are indexed, and record their use
+    Set<String> queriedProperties = getQueriedProperties(queryDto);
+    Set<String> indexedProperties = backendConfigManager.getIndexedProperties().get(
+        queryDto.getKindName());
+    Set<String> indexedPaths = backendConfigManager.getIndexedPaths().get(
+        queryDto.getKindName());
+    Set<String> backfillingNames = backendConfigManager.getBackfillingNames().get(
+        queryDto.getKindName());
+    for (String propName : queriedProperties) {
+      if (propName.startsWith(EntityDto.PROP_INDEXED_PREFIX_PATH)) {
+        String path = propName.substring(EntityDto.PROP_INDEXED_PREFIX_PATH.length());
+        if (indexedPaths == null || !indexedPaths.contains(path)) {
+          throw new IllegalArgumentException("query: path " + path + " of kind "
+              + queryDto.getKindName() + " is not indexed");
+        }
+        checkNotBackfilling(queryDto.getKindName(), path, backfillingNames, false);
+      } else if (!propName.startsWith("_")) {
+        if (indexedProperties != null && !indexedProperties.contains(propName)) {
+          throw new IllegalArgumentException("query: property " + propName + " of kind "
+              + queryDto.getKindName() + " is not indexed");
+        }
+        checkNotBackfilling(queryDto.getKindName(), propName, backfillingNames, true);
+      }
+    }
+    propertyUsageTracker.record(queryDto.getKindName(), queriedProperties);
+
     // create Query
     Query q = SecurityChecker.getInstance().createKindQueryWithNamespace(queryDto.getKindName(),
         user);
-    q.setKeysOnly();
+    boolean isProjection = queryDto.getProjectedPropertyNames() != null
+        && !queryDto.getProjectedPropertyNames().isEmpty();
+    if (isProjection) {
+      for (String propName : queryDto.getProjectedPropertyNames()) {
+        q.addProjection(new PropertyProjection(propName, METADATA_PROPERTY_TYPES.get(propName)));
+      }
+    } else {
+      q.setKeysOnly();
+    }
 
     // set filters
     FilterDto cf = queryDto.getFilterDto();
@@ -116,49 +218,201 @@ public class QueryOperations {
           queryDto.isSortAscending() ? SortDirection.ASCENDING : SortDirection.DESCENDING);
     }
 
-    // add limit
+    // add limit and cursors
     FetchOptions fo;
     if (queryDto.getLimit() != null && queryDto.getLimit() > 0) {
       fo = FetchOptions.Builder.withLimit(queryDto.getLimit());
     } else {
       fo = FetchOptions.Builder.withDefaults();
     }
+    boolean isMergedCursor = QueryPlanner.isMergedCursor(queryDto.getStartCursor());
+    if (!StringUtility.isNullOrEmpty(queryDto.getStartCursor()) && !isMergedCursor) {
+      fo.startCursor(Cursor.fromWebSafeString(queryDto.getStartCursor()));
+    }
+    if (!StringUtility.isNullOrEmpty(queryDto.getEndCursor())) {
+      fo.endCursor(Cursor.fromWebSafeString(queryDto.getEndCursor()));
+    }
+
+    // serve the result keys from the cache if the kind hasn't changed since they were cached
+    EntityListDto cdl = new EntityListDto();
+    QueryCache.Lookup lookup = null;
+    if (!isProjection) {
+      lookup = queryCache.get(q.getNamespace(), queryDto);
+      if (lookup.isHit()) {
+        cdl.setNextCursor(lookup.getNextCursor());
+        addEntities(cdl, lookup.getKeys());
+        return cdl;
+      }
+    }
+
+    // split disjunctions into sub-queries that run in parallel; their pages are resumed with a
+    // merged cursor, while the cursors of a single Datastore query keep it on that query
+    boolean hasDatastoreCursor = (!StringUtility.isNullOrEmpty(queryDto.getStartCursor())
+        && !isMergedCursor) || !StringUtility.isNullOrEmpty(queryDto.getEndCursor());
+    List<List<FilterDto>> conjunctions = null;
+    if (cf != null && !isProjection && !hasDatastoreCursor) {
+      conjunctions = queryPlanner.toDisjunctiveNormalForm(cf,
+          queryDto.getSortedPropertyName() != null);
+    }
+    if (isMergedCursor && conjunctions == null) {
+      throw new IllegalArgumentException("query: cursor doesn't belong to this query");
+    }
+    if (conjunctions != null) {
+      QueryPlanner.Result merged = queryPlanner.execute(queryDto, conjunctions, user);
+      List<Key> keyList = new LinkedList<Key>();
+      for (Entity e : merged.entities) {
+        keyList.add(e.getKey());
+      }
+      cdl.setNextCursor(merged.nextCursor);
+      queryCache.put(lookup, keyList, merged.nextCursor);
+      if (!merged.isKeysOnly) {
+        for (Entity e : merged.entities) {
+          cdl.getEntries().add(EntityDto.createFromEntity(e));
+        }
+      } else {
+        addEntities(cdl, keyList);
+      }
+      return cdl;
+    }
 
     // execute the query
-    List<Entity> results = datastore.prepare(q).asList(fo);
+    QueryResultList<Entity> results = datastore.prepare(q).asQueryResultList(fo);
+
+    // convert the projected Entities to sparse CbDtos without fetching the entities; a projected
+    // multi-valued property returns a row per value, so the rows of an entity are merged
+    if (isProjection) {
+      Map<Key, Entity> projected = new LinkedHashMap<Key, Entity>();
+      for (Entity row : results) {
+        Entity e = projected.get(row.getKey());
+        if (e == null) {
+          e = new Entity(row.getKey());
+          projected.put(row.getKey(), e);
+        }
+        for (Map.Entry<String, Object> prop : row.getProperties().entrySet()) {
+          Object value = prop.getValue();
+          addProjectedValue(e, prop.getKey(),
+              value instanceof RawValue ? convertRawValue((RawValue) value) : value);
+        }
+      }
+      for (Entity e : projected.values()) {
+        cdl.getEntries().add(EntityDto.createFromEntity(e));
+      }
+      setNextCursor(cdl, results, queryDto);
+      return cdl;
+    }
 
     // get entities from the keys
     List<Key> keyList = new LinkedList<Key>();
     for (Entity e : results) {
       keyList.add(e.getKey());
     }
+    setNextCursor(cdl, results, queryDto);
+    queryCache.put(lookup, keyList, cdl.getNextCursor());
+    addEntities(cdl, keyList);
+    return cdl;
+  }
+
+  // a property or path that has just been indexed is missing the entities saved before, so
+  // queries on it are rejected until IndexBackfillServlet has indexed them
+  private static void checkNotBackfilling(String kindName, String name,
+      Set<String> backfillingNames, boolean isProperty) {
+    if (backfillingNames != null && (backfillingNames.contains(name)
+        || (isProperty && backfillingNames.contains(BackendConfigManager.ALL_PROPERTIES)))) {
+      throw new IllegalArgumentException("query: " + (isProperty ? "property " : "path ") + name
+          + " of kind " + kindName + " is being indexed, try again later");
+    }
+  }
+
+  // properties in the filters, sort order and projection of the query
+  private static Set<String> getQueriedProperties(QueryDto queryDto) {
+    Set<String> propNames = new HashSet<String>();
+    if (queryDto.getFilterDto() != null) {
+      propNames.addAll(queryDto.getFilterDto().compile().getProsSearchSchema().keySet());
+    }
+    if (queryDto.getSortedPropertyName() != null) {
+      propNames.add(queryDto.getSortedPropertyName());
+    }
+    if (queryDto.getProjectedPropertyNames() != null) {
+      propNames.addAll(queryDto.getProjectedPropertyNames());
+    }
+    return propNames;
+  }
+
+  // converts the Entities of the keys to CbDtos, in the order of the keys
+  private void addEntities(EntityListDto cdl, List<Key> keyList) {
     Map<String, Entity> resultEntities = CrudOperations.getInstance().getAllEntitiesByKeyList(
         keyList);
+    for (Key key : keyList) {
+      Entity e = resultEntities.get(key.getName());
+      if (e != null) {
+        cdl.getEntries().add(EntityDto.createFromEntity(e));
+      }
+    }
+  }
 
-    // convert the Entities to CbDtos
-    EntityListDto cdl = new EntityListDto();
-    for (Entity keyOnlyEntity : results) {
-      Entity e = resultEntities.get(keyOnlyEntity.getKey().getName());
-      cdl.getEntries().add(EntityDto.createFromEntity(e));
+  // return a cursor for the next page if this page has been filled up
+  private void setNextCursor(EntityListDto cdl, QueryResultList<Entity> results,
+      QueryDto queryDto) {
+    if (queryDto.getLimit() != null && queryDto.getLimit() > 0
+        && results.size() == queryDto.getLimit() && results.getCursor() != null) {
+      cdl.setNextCursor(results.getCursor().toWebSafeString());
     }
-    return cdl;
   }
 
-  private void addQuerySubscriber(QueryDto queryDto) {
+  // adds a projected value to the property of the merged entity, turning it into a list of the
+  // distinct values once it has more than one
+  private static void addProjectedValue(Entity e, String propName, Object value) {
+    if (!e.hasProperty(propName)) {
+      e.setProperty(propName, value);
+      return;
+    }
+    Object current = e.getProperty(propName);
+    List<Object> values = new ArrayList<Object>();
+    if (current instanceof Collection) {
+      values.addAll((Collection<?>) current);
+    } else {
+      values.add(current);
+    }
+    if (!values.contains(value)) {
+      values.add(value);
+      e.setProperty(propName, values);
+    }
+  }
+
+  // user properties have no known type and are projected as RawValues; strings come back as
+  // UTF-8 bytes, and integers as Longs, which are read as Dates when they are stored as
+  // timestamps
+  private static Object convertRawValue(RawValue raw) {
+    Object value = raw.getValue();
+    if (value instanceof Long) {
+      try {
+        return raw.asType(Date.class);
+      } catch (IllegalArgumentException e) {
+        return raw.asType(Long.class);
+      }
+    }
+    if (value instanceof byte[]) {
+      try {
+        return new String((byte[]) value, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return value;
+  }
+
+  private void addQuerySubscriber(QueryDto queryDto, User user) {
     String queryId = queryDto.getQueryId();
     String regId = queryDto.getRegId();
     String subId = SubscriptionUtility.constructSubId(regId, queryId);
 
-    // build ProsSearch query and schema
-    String query = queryDto.buildProsSearchQuery();
-    Map<String, FieldType> schema = queryDto.buildProsSearchSchema();
-
-    // subscribe
-    int duration = queryDto.getSubscriptionDurationSec() == null ? PROS_SEARCH_DURATION_SEC
+    // subscribe in the namespace the query would be executed in
+    String namespace = SecurityChecker.getInstance().createKindQueryWithNamespace(
+        queryDto.getKindName(), user).getNamespace();
+    int duration = queryDto.getSubscriptionDurationSec() == null ? SUBSCRIPTION_DURATION_SEC
         : queryDto.getSubscriptionDurationSec();
-    prosSearch.subscribe(PROS_SEARCH_DEFAULT_TOPIC, subId, duration, query, schema);
-    log.info("addQuerySubscriber: query: " + query + ", schema: " + schema + ", duration: "
-        + duration);
+    subscriptionMatcher.subscribe(subId, queryDto, namespace, duration);
+    log.info("addQuerySubscriber: query: " + queryDto + ", duration: " + duration);
 
     // Add a deviceSubscription entity which can be pulled later for subscription id clean up
     DeviceSubscription deviceSubscription = new DeviceSubscription();
@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.users.User;
+import com.google.cloud.backend.beans.CompiledFilter;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.FilterDto;
+import com.google.cloud.backend.beans.FilterDto.Op;
+import com.google.cloud.backend.beans.PropertyValueComparator;
+import com.google.cloud.backend.beans.QueryDto;
+import com.google.cloud.backend.config.StringUtility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Executes CloudEntity queries with disjunctions (OR, IN and NE filters) as independent
+ * Datastore queries that run in parallel, and merges their results.
+ *
+ * The filter is expanded into a disjunction of conjunctions, each of which becomes one sub-query.
+ * When the query is sorted, the sub-queries return whole entities and are merged in sort order.
+ * Unsorted conjunctions with an inequality come back from Datastore ordered by the inequality
+ * property, so they are sorted on it explicitly, return whole entities and are merged in its
+ * order; a filter whose conjunctions don't all have their inequalities on the same property is
+ * left to a single Datastore query. Other unsorted sub-queries return keys only and are merged in
+ * key order, like the results of a single Datastore query. Ties are broken by key. Duplicates are
+ * removed, and no sub-query is read further once the limit has been reached.
+ *
+ * A page that fills the limit gets a cursor made of the cursor of each sub-query after the last
+ * result it has contributed, so that the next page resumes every sub-query where it has stopped.
+ */
+class QueryPlanner {
+
+  /**
+   * Maximum number of sub-queries a query can be split into, same as Datastore.
+   */
+  static final int MAX_SUBQUERIES = 30;
+
+  // web-safe cursors contain neither of these
+  private static final String CURSOR_PREFIX = "*";
+
+  private static final String CURSOR_SEPARATOR = "|";
+
+  private static final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
+
+  private static final QueryPlanner _instance = new QueryPlanner();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static QueryPlanner getInstance() {
+    return _instance;
+  }
+
+  private QueryPlanner() {
+  }
+
+  /**
+   * Merged results of the sub-queries, and the cursor of the next page if the limit was reached.
+   */
+  static class Result {
+    final List<Entity> entities;
+    final boolean isKeysOnly;
+    final String nextCursor;
+
+    Result(List<Entity> entities, boolean isKeysOnly, String nextCursor) {
+      this.entities = entities;
+      this.isKeysOnly = isKeysOnly;
+      this.nextCursor = nextCursor;
+    }
+  }
+
+  // result stream of a sub-query, with the predicates of its conjunction on the merge property
+  private static class Stream {
+    final QueryResultIterator<Entity> results;
+    final int index;
+    final List<CompiledFilter> mergePropPredicates;
+
+    Stream(QueryResultIterator<Entity> results, int index,
+        List<CompiledFilter> mergePropPredicates) {
+      this.results = results;
+      this.index = index;
+      this.mergePropPredicates = mergePropPredicates;
+    }
+  }
+
+  // head of a sub-query result stream, with the cursor after it
+  private static class Head {
+    final Entity entity;
+    final Object sortValue;
+    final Stream stream;
+    final Cursor cursor;
+
+    Head(Entity entity, Object sortValue, Stream stream, Cursor cursor) {
+      this.entity = entity;
+      this.sortValue = sortValue;
+      this.stream = stream;
+      this.cursor = cursor;
+    }
+  }
+
+  /**
+   * Returns true if the specified cursor has been returned by
+   * {@link #execute(QueryDto, List, User)}, rather than by a single Datastore query.
+   */
+  static boolean isMergedCursor(String cursor) {
+    return cursor != null && cursor.startsWith(CURSOR_PREFIX);
+  }
+
+  /**
+   * Expands the specified filter into a disjunction of conjunctions of filter predicates.
+   *
+   * @param filter
+   *          filter of the query.
+   * @param isSorted
+   *          true if the query is sorted.
+   * @return {@link List} of conjunctions, or null if the filter has no disjunction, would be split
+   *         into more than {@link #MAX_SUBQUERIES} sub-queries, or the query is unsorted and the
+   *         conjunctions don't all have their inequalities on the same property.
+   */
+  List<List<FilterDto>> toDisjunctiveNormalForm(FilterDto filter, boolean isSorted) {
+    List<List<FilterDto>> conjunctions = expand(filter);
+    if (conjunctions == null || conjunctions.size() < 2) {
+      return null;
+    }
+    if (!isSorted) {
+      Set<String> propNames = new HashSet<String>();
+      boolean hasNoInequality = false;
+      for (List<FilterDto> conjunction : conjunctions) {
+        Set<String> conjunctionPropNames = getInequalityPropNames(conjunction);
+        hasNoInequality |= conjunctionPropNames.isEmpty();
+        propNames.addAll(conjunctionPropNames);
+      }
+      if (propNames.size() > 1 || (propNames.size() == 1 && hasNoInequality)) {
+        return null;
+      }
+    }
+    return conjunctions;
+  }
+
+  // indexed names of the properties the conjunction has inequality filters on
+  private static Set<String> getInequalityPropNames(List<FilterDto> conjunction) {
+    Set<String> propNames = new HashSet<String>();
+    for (FilterDto f : conjunction) {
+      switch (f.getOperator()) {
+      case LT:
+      case LE:
+      case GT:
+      case GE:
+        propNames.add(f.compile().getPropName());
+        break;
+      default:
+        break;
+      }
+    }
+    return propNames;
+  }
+
+  // returns null if there are too many conjunctions
+  private List<List<FilterDto>> expand(FilterDto filter) {
+    List<List<FilterDto>> result = new ArrayList<List<FilterDto>>();
+    switch (filter.getOperator()) {
+    case NE:
+      result.add(Arrays.asList(createPredicate(Op.LT, filter.getValues().get(0),
+          filter.getValues().get(1))));
+      result.add(Arrays.asList(createPredicate(Op.GT, filter.getValues().get(0),
+          filter.getValues().get(1))));
+      break;
+    case IN:
+      for (Object value : filter.getValues().subList(1, filter.getValues().size())) {
+        result.add(Arrays.asList(createPredicate(Op.EQ, filter.getValues().get(0), value)));
+      }
+      break;
+    case OR:
+      for (FilterDto subfilter : filter.getSubfilters()) {
+        List<List<FilterDto>> expanded = expand(subfilter);
+        if (expanded == null) {
+          return null;
+        }
+        result.addAll(expanded);
+      }
+      break;
+    case AND:
+      result.add(new ArrayList<FilterDto>());
+      for (FilterDto subfilter : filter.getSubfilters()) {
+        List<List<FilterDto>> expanded = expand(subfilter);
+        if (expanded == null || result.size() * expanded.size() > MAX_SUBQUERIES) {
+          return null;
+        }
+        List<List<FilterDto>> product = new ArrayList<List<FilterDto>>();
+        for (List<FilterDto> left : result) {
+          for (List<FilterDto> right : expanded) {
+            List<FilterDto> conjunction = new ArrayList<FilterDto>(left);
+            conjunction.addAll(right);
+            product.add(conjunction);
+          }
+        }
+        result = product;
+      }
+      break;
+    default:
+      result.add(Arrays.asList(filter));
+    }
+    return result.size() > MAX_SUBQUERIES ? null : result;
+  }
+
+  private FilterDto createPredicate(Op op, Object propName, Object value) {
+    FilterDto f = new FilterDto();
+    f.setOperator(op);
+    f.setValues(Arrays.asList(propName, value));
+    return f;
+  }
+
+  /**
+   * Executes the sub-queries for the specified conjunctions in parallel and merges their results.
+   *
+   * @param queryDto
+   *          {@link QueryDto} to execute.
+   * @param conjunctions
+   *          conjunctions returned by {@link #toDisjunctiveNormalForm(FilterDto, boolean)}.
+   * @param user
+   *          {@link User} who requested the query.
+   * @return {@link Result} with whole entities if the query is sorted or has inequalities, or
+   *         with key-only entities otherwise.
+   * @throws IllegalArgumentException
+   *           if the start cursor of the query is invalid or belongs to another query.
+   */
+  Result execute(QueryDto queryDto, List<List<FilterDto>> conjunctions, User user) {
+    boolean isSorted = queryDto.getSortedPropertyName() != null;
+    String mergePropName;
+    boolean isAscending;
+    if (isSorted) {
+      mergePropName = queryDto.getSortedPropertyName();
+      isAscending = queryDto.isSortAscending();
+    } else {
+      Set<String> propNames = getInequalityPropNames(conjunctions.get(0));
+      mergePropName = propNames.isEmpty() ? null : propNames.iterator().next();
+      isAscending = true;
+    }
+    int limit = queryDto.getLimit() != null && queryDto.getLimit() > 0 ? queryDto.getLimit()
+        : Integer.MAX_VALUE;
+    Cursor[] cursors = decodeCursor(queryDto.getStartCursor(), conjunctions.size());
+
+    // start all the sub-queries; each of them fetches its first batch in the background
+    List<Stream> streams = new ArrayList<Stream>();
+    for (List<FilterDto> conjunction : conjunctions) {
+      Query q = SecurityChecker.getInstance().createKindQueryWithNamespace(
+          queryDto.getKindName(), user);
+      q.setFilter(toDatastoreFilter(conjunction));
+      if (mergePropName != null) {
+        q.addSort(mergePropName,
+            isAscending ? SortDirection.ASCENDING : SortDirection.DESCENDING);
+        q.addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.ASCENDING);
+      } else {
+        q.setKeysOnly();
+      }
+      FetchOptions fo = limit == Integer.MAX_VALUE ? FetchOptions.Builder.withDefaults()
+          : FetchOptions.Builder.withLimit(limit);
+      if (cursors[streams.size()] != null) {
+        fo.startCursor(cursors[streams.size()]);
+      }
+      streams.add(new Stream(asyncDatastore.prepare(q).asQueryResultIterator(fo),
+          streams.size(), getPredicates(conjunction, mergePropName)));
+    }
+
+    List<Entity> results = merge(streams, cursors, mergePropName, isAscending, limit);
+    String nextCursor = null;
+    if (limit != Integer.MAX_VALUE && results.size() == limit) {
+      nextCursor = encodeCursor(cursors);
+    }
+    return new Result(results, mergePropName == null, nextCursor);
+  }
+
+  // compiled predicates of the conjunction on the specified property
+  private static List<CompiledFilter> getPredicates(List<FilterDto> conjunction,
+      String propName) {
+    List<CompiledFilter> predicates = new ArrayList<CompiledFilter>();
+    for (FilterDto f : conjunction) {
+      CompiledFilter cf = f.compile();
+      if (cf.getPropName() != null && cf.getPropName().equals(propName)) {
+        predicates.add(cf);
+      }
+    }
+    return predicates;
+  }
+
+  // returns the start cursor of each sub-query, or null where it starts from the beginning
+  private static Cursor[] decodeCursor(String s, int count) {
+    Cursor[] cursors = new Cursor[count];
+    if (StringUtility.isNullOrEmpty(s)) {
+      return cursors;
+    }
+    String[] parts = s.substring(CURSOR_PREFIX.length()).split(Pattern.quote(CURSOR_SEPARATOR),
+        -1);
+    if (!isMergedCursor(s) || parts.length != count) {
+      throw new IllegalArgumentException("query: cursor doesn't belong to this query");
+    }
+    for (int i = 0; i < count; i++) {
+      cursors[i] = parts[i].isEmpty() ? null : Cursor.fromWebSafeString(parts[i]);
+    }
+    return cursors;
+  }
+
+  private static String encodeCursor(Cursor[] cursors) {
+    StringBuilder sb = new StringBuilder(CURSOR_PREFIX);
+    for (int i = 0; i < cursors.length; i++) {
+      if (i > 0) {
+        sb.append(CURSOR_SEPARATOR);
+      }
+      if (cursors[i] != null) {
+        sb.append(cursors[i].toWebSafeString());
+      }
+    }
+    return sb.toString();
+  }
+
+  private Filter toDatastoreFilter(List<FilterDto> conjunction) {
+    if (conjunction.size() == 1) {
+      return conjunction.get(0).getDatastoreFilter();
+    }
+    List<Filter> filters = new ArrayList<Filter>();
+    for (FilterDto f : conjunction) {
+      filters.add(f.getDatastoreFilter());
+    }
+    return CompositeFilterOperator.and(filters);
+  }
+
+  /**
+   * k-way merge of streams sorted by the specified property, or by key if it is null; ties are
+   * broken by key, like Datastore does. A multi-valued property is sorted by its smallest or
+   * largest value that satisfies the predicates of the stream's conjunction on it, as Datastore
+   * sorts it within the range of the filter. The cursor of each stream is moved past the results it
+   * has contributed, including duplicates of results that have already been taken, so that the
+   * next page doesn't return them again.
+   */
+  private List<Entity> merge(List<Stream> streams, Cursor[] cursors,
+      final String propName, final boolean isAscending, int limit) {
+    final PropertyValueComparator comparator = PropertyValueComparator.INSTANCE;
+    PriorityQueue<Head> heads = new PriorityQueue<Head>(streams.size(), new Comparator<Head>() {
+      @Override
+      public int compare(Head a, Head b) {
+        if (propName != null) {
+          int c = comparator.compare(a.sortValue, b.sortValue);
+          if (c != 0) {
+            return isAscending ? c : -c;
+          }
+        }
+        return a.entity.getKey().compareTo(b.entity.getKey());
+      }
+    });
+    for (Stream stream : streams) {
+      advance(heads, stream, propName, isAscending);
+    }
+
+    List<Entity> results = new ArrayList<Entity>();
+    Set<Key> seen = new HashSet<Key>();
+    while (!heads.isEmpty()) {
+      boolean isDuplicate = seen.contains(heads.peek().entity.getKey());
+      if (results.size() >= limit && !isDuplicate) {
+        break;
+      }
+      Head head = heads.poll();
+      cursors[head.stream.index] = head.cursor;
+      if (!isDuplicate) {
+        seen.add(head.entity.getKey());
+        results.add(head.entity);
+      }
+      advance(heads, head.stream, propName, isAscending);
+    }
+    return results;
+  }
+
+  private void advance(PriorityQueue<Head> heads, Stream stream, String propName,
+      boolean isAscending) {
+    if (stream.results.hasNext()) {
+      Entity e = stream.results.next();
+      Object sortValue = propName == null ? null : PropertyValueComparator.INSTANCE.getSortValue(
+          getValuesInRange(e.getProperty(propName), stream.mergePropPredicates), isAscending);
+      heads.add(new Head(e, sortValue, stream, stream.results.getCursor()));
+    }
+  }
+
+  // values of a multi-valued property that satisfy all the predicates
+  private static Object getValuesInRange(Object value, List<CompiledFilter> predicates) {
+    if (!(value instanceof Collection) || predicates.isEmpty()) {
+      return value;
+    }
+    List<Object> values = new ArrayList<Object>();
+    for (Object v : (Collection<?>) value) {
+      boolean isInRange = true;
+      for (CompiledFilter predicate : predicates) {
+        isInRange &= predicate.matchesValue(v);
+      }
+      if (isInRange) {
+        values.add(v);
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.QueryDto;
+import com.google.cloud.backend.config.StringUtility;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for fanning out a matched shared query to the devices subscribed to it.
+ *
+ * It is intended to be called by Push Task Queue. Each task reads one page of subscribers of a
+ * query and enqueues their notifications. If the first page of a query is full, the audience is
+ * considered large and the work is split into one task per subscriber shard, so that the shards
+ * are read in parallel. Further pages are read by continuation tasks that carry a cursor.
+ *
+ * The entities the query matched are carried along when they are small enough, and sent inline to
+ * the subscribers that asked for them with {@link QueryDto#isInlineEntity()}.
+ */
+public class SubscriptionFanoutServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(SubscriptionFanoutServlet.class.getName());
+
+  // the number of subscribers read by a task
+  static final int PAGE_SIZE = 500;
+
+  /**
+   * The maximum length of the matched entities that are sent inline, which leaves room for the
+   * rest of a GCM message within its 4KB limit.
+   */
+  static final int MAX_INLINE_ENTITIES_BYTES = 3 * 1024;
+
+  // the maximum number of tasks that can be added to a queue at once
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  private static final Gson gson = new Gson();
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String queryHash = req.getParameter("queryHash");
+    if (StringUtility.isNullOrEmpty(queryHash)) {
+      log.warning("Missing 'queryHash' argument on task queue request. This indicates a bug");
+      return;
+    }
+    String entities = req.getParameter("entities");
+    String shardParameter = req.getParameter("shard");
+    String cursorParameter = req.getParameter("cursor");
+    Long shard = null;
+    Cursor cursor = null;
+    try {
+      if (!StringUtility.isNullOrEmpty(shardParameter)) {
+        shard = Long.valueOf(shardParameter);
+      }
+      if (!StringUtility.isNullOrEmpty(cursorParameter)) {
+        cursor = Cursor.fromWebSafeString(cursorParameter);
+      }
+    } catch (IllegalArgumentException e) {
+      log.warning("Invalid 'shard' or 'cursor' argument on task queue request. "
+          + "This indicates a bug");
+      return;
+    }
+
+    // read a page of subscribers
+    Filter filter = new FilterPredicate(SubscriptionMatcher.PROPERTY_QUERY_HASH,
+        FilterOperator.EQUAL, queryHash);
+    if (shard != null) {
+      filter = CompositeFilterOperator.and(filter, new FilterPredicate(
+          SubscriptionMatcher.PROPERTY_SHARD, FilterOperator.EQUAL, shard));
+    }
+    Query q = new Query(SubscriptionMatcher.SUBSCRIBER_KIND).setFilter(filter);
+    FetchOptions fo = FetchOptions.Builder.withLimit(PAGE_SIZE);
+    if (cursor != null) {
+      fo.startCursor(cursor);
+    }
+    QueryResultList<Entity> page = datastore.prepare(q).asQueryResultList(fo);
+    boolean isFirstPage = shard == null && cursor == null;
+
+    // split a large audience into shards
+    if (isFirstPage && page.size() == PAGE_SIZE) {
+      List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+      for (int i = 0; i < SubscriptionMatcher.SUBSCRIBER_SHARDS; i++) {
+        tasks.add(createTask(queryHash, entities).param("shard", String.valueOf(i)));
+      }
+      getQueue().add(tasks);
+      log.info("SubscriptionFanoutServlet: query " + queryHash + " split into "
+          + tasks.size() + " shards");
+      return;
+    }
+
+    // a query without subscribers is removed
+    if (isFirstPage && page.isEmpty()) {
+      SubscriptionMatcher.getInstance().removeQueryIfUnused(queryHash);
+      return;
+    }
+
+    // notify the active subscribers and delete the expired ones
+    Date now = new Date();
+    List<String> subIds = new ArrayList<String>();
+    List<String> inlineSubIds = new ArrayList<String>();
+    List<Key> expiredKeys = new ArrayList<Key>();
+    for (Entity e : page) {
+      Date expiresAt = (Date) e.getProperty(SubscriptionMatcher.PROPERTY_EXPIRES_AT);
+      if (expiresAt != null && expiresAt.before(now)) {
+        expiredKeys.add(e.getKey());
+      } else if (entities != null
+          && Boolean.TRUE.equals(e.getProperty(SubscriptionMatcher.PROPERTY_INLINE_ENTITY))) {
+        inlineSubIds.add(e.getKey().getName());
+      } else {
+        subIds.add(e.getKey().getName());
+      }
+    }
+    if (!expiredKeys.isEmpty()) {
+      asyncDatastore.delete(expiredKeys);
+    }
+    if (!subIds.isEmpty()) {
+      ProspectiveSearchServlet.enqueueNotifications(subIds, null);
+    }
+    if (!inlineSubIds.isEmpty()) {
+      ProspectiveSearchServlet.enqueueNotifications(inlineSubIds, entities);
+    }
+
+    // continue with the next page
+    if (page.size() == PAGE_SIZE) {
+      TaskOptions task = createTask(queryHash, entities).param("cursor",
+          page.getCursor().toWebSafeString());
+      if (shard != null) {
+        task.param("shard", String.valueOf(shard));
+      }
+      getQueue().add(task);
+    }
+    log.info("SubscriptionFanoutServlet: query: " + queryHash + ", shard: " + shard
+        + ", notified: " + (subIds.size() + inlineSubIds.size()) + ", with entities: "
+        + inlineSubIds.size() + ", expired: " + expiredKeys.size());
+  }
+
+  /**
+   * Enqueues the fan-out of the specified matched queries to their subscribers. The entities a
+   * query matched are carried along for the subscribers that want them inline, if they fit in
+   * {@link #MAX_INLINE_ENTITIES_BYTES}.
+   *
+   * @param matches matched entities by hash of the matched shared query
+   */
+  static void enqueueFanout(Map<String, List<Entity>> matches) {
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (Map.Entry<String, List<Entity>> match : matches.entrySet()) {
+      tasks.add(createTask(match.getKey(), createInlineEntities(match.getValue())));
+      if (tasks.size() == MAX_TASKS_PER_ADD) {
+        getQueue().add(tasks);
+        tasks = new ArrayList<TaskOptions>();
+      }
+    }
+    if (!tasks.isEmpty()) {
+      getQueue().add(tasks);
+    }
+  }
+
+  /**
+   * Returns a compact JSON array of the specified entities with their ids, kind names, update
+   * times and properties, or null if it is longer than {@link #MAX_INLINE_ENTITIES_BYTES}.
+   * Tombstones of deleted entities are sent with their deletion times and a deleted flag instead
+   * of properties.
+   */
+  static String createInlineEntities(List<Entity> entities) {
+    List<Map<String, Object>> inlineEntities = new ArrayList<Map<String, Object>>();
+    for (Entity e : entities) {
+      Map<String, Object> inlineEntity = new LinkedHashMap<String, Object>();
+      if (SyncOperations.TOMBSTONE_KIND.equals(e.getKind())) {
+        inlineEntity.put("id", e.getParent().getName());
+        inlineEntity.put("kindName", e.getProperty(SyncOperations.PROPERTY_KIND_NAME));
+        inlineEntity.put("updatedAt",
+            ((Date) e.getProperty(SyncOperations.PROPERTY_DELETED_AT)).getTime());
+        inlineEntity.put("deleted", true);
+        inlineEntities.add(inlineEntity);
+        continue;
+      }
+      EntityDto cd = EntityDto.createFromEntity(e);
+      inlineEntity.put("id", cd.getId());
+      inlineEntity.put("kindName", cd.getKindName());
+      inlineEntity.put("updatedAt", cd.getUpdatedAt() == null ? null
+          : cd.getUpdatedAt().getTime());
+      inlineEntity.put("properties", cd.getProperties());
+      inlineEntities.add(inlineEntity);
+    }
+    String json = gson.toJson(inlineEntities);
+    try {
+      return json.getBytes("UTF-8").length > MAX_INLINE_ENTITIES_BYTES ? null : json;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static TaskOptions createTask(String queryHash, String entities) {
+    TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/prossearch/fanout")
+        .param("queryHash", queryHash);
+    if (entities != null) {
+      task.param("entities", entities);
+    }
+    return task;
+  }
+
+  private static Queue getQueue() {
+    return QueueFactory.getQueue("subscription-fanout");
+  }
+}
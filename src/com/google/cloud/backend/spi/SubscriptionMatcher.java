@@ -0,0 +1,924 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.prospectivesearch.FieldType;
+import com.google.cloud.backend.beans.CompiledFilter;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.FilterDto.Op;
+import com.google.cloud.backend.beans.PropertyValueComparator;
+import com.google.cloud.backend.beans.QueryDto;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Matches saved CloudEntities with query subscriptions.
+ *
+ * Devices that subscribe to the same query share one subscription, identified by the hash of the
+ * query. Subscriptions are persisted as {@link #SUBSCRIPTION_KIND} entities and the devices
+ * subscribed to them as {@link #SUBSCRIBER_KIND} entities, so that matching cost grows with the
+ * number of distinct queries rather than with the number of devices. Matched queries are fanned
+ * out to their subscribers by {@link SubscriptionFanoutServlet}.
+ *
+ * Subscriptions are kept in memory on each instance, indexed by namespace and kind. Within a
+ * kind, a subscription is indexed by one of the top-level predicates of its filter: an EQ or IN
+ * predicate puts it in buckets by value, and a range predicate puts it in a sorted map by its
+ * bound. Values and bounds are ordered by {@link PropertyValueComparator}, like the filters
+ * compare them, so a range predicate also finds the values of the type classes beyond its bound.
+ * Subscriptions without such a predicate are scanned. The candidates found through the
+ * index are then checked with the whole filter, so the cost of matching an entity grows with the
+ * number of candidate subscriptions rather than with the number of all subscriptions.
+ *
+ * Subscription changes are applied to the instance that makes them right away. Each change that
+ * adds or removes a shared query is numbered by a counter kept in Memcache and written to a ring of
+ * {@link #CHANGE_KIND} entities, one per number. Other instances check the counter at most once per
+ * {@link #GENERATION_CHECK_INTERVAL_MILLIS}, get the new changes and the queries they name by key,
+ * which is strongly consistent, and apply them to their index. The reads are asynchronous and are
+ * applied by a later call once they have completed, so matching never waits for them, and a call
+ * that finds another one applying changes skips them. Subscriptions are only reloaded all at once
+ * when an instance starts, or has fallen behind by more changes than the ring holds. As the query
+ * of a reload is eventually consistent, the changes made shortly before it are applied again
+ * afterwards. Reloads run in {@link #load()}, which is called by warmup requests and by
+ * {@link EntityMatchingServlet}, never on the path of a user request: until the subscriptions are
+ * loaded, {@link #match(List)} returns null and the entities are matched on the task queue.
+ */
+class SubscriptionMatcher {
+
+  /**
+   * Shared query subscription entity name.
+   */
+  static final String SUBSCRIPTION_KIND = "_QuerySubscription";
+
+  /**
+   * Subscriber entity name. Subscribers are keyed by subscription id.
+   */
+  static final String SUBSCRIBER_KIND = "_QuerySubscriber";
+
+  static final String PROPERTY_KIND_SCOPE = "KindScope";
+
+  static final String PROPERTY_QUERY = "Query";
+
+  static final String PROPERTY_LAST_SUBSCRIBED_AT = "LastSubscribedAt";
+
+  static final String PROPERTY_QUERY_HASH = "QueryHash";
+
+  static final String PROPERTY_SHARD = "Shard";
+
+  static final String PROPERTY_EXPIRES_AT = "ExpiresAt";
+
+  static final String PROPERTY_INLINE_ENTITY = "InlineEntity";
+
+  /**
+   * Subscription change entity name. Changes are keyed by their number modulo
+   * {@link #CHANGE_LOG_SIZE}.
+   */
+  static final String CHANGE_KIND = "_QuerySubscriptionChange";
+
+  static final String PROPERTY_SEQUENCE = "Sequence";
+
+  static final String PROPERTY_CHANGED_AT = "ChangedAt";
+
+  static final int CHANGE_LOG_SIZE = 1000;
+
+  /**
+   * Number of shards the subscribers of a query are split into for fan-out.
+   */
+  static final int SUBSCRIBER_SHARDS = 16;
+
+  static final long UNUSED_QUERY_GRACE_MILLIS = 60 * 60 * 1000;
+
+  static final long GENERATION_CHECK_INTERVAL_MILLIS = 5000;
+
+  // time for a change to show up in the results of queries
+  static final long CONSISTENCY_LAG_MILLIS = 60 * 1000;
+
+  // time after which a change that has been numbered but not written is given up on
+  static final long MISSING_CHANGE_TIMEOUT_MILLIS = 60 * 1000;
+
+  private static final int RELOAD_CHUNK_SIZE = 1000;
+
+  private static final int MAX_CHANGES_PER_READ = 100;
+
+  // changes before a reload that are applied again after it
+  private static final int RELOAD_REPLAYED_CHANGES = 100;
+
+  private static final String GENERATION_KEY = "_QuerySubscriptionGeneration";
+
+  private static final Logger log = Logger.getLogger(SubscriptionMatcher.class.getName());
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final AsyncDatastoreService asyncDatastore = DatastoreServiceFactory
+      .getAsyncDatastoreService();
+
+  private static final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private static final Gson gson = new Gson();
+
+  private static final SubscriptionMatcher _instance = new SubscriptionMatcher();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  static SubscriptionMatcher getInstance() {
+    return _instance;
+  }
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // all subscriptions by query hash, and their indexes by kind scope
+  private Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+  private Map<String, KindIndex> indexes = new HashMap<String, KindIndex>();
+
+  // state of the changes applied from other instances, guarded by changeLock
+  private final Lock changeLock = new ReentrantLock();
+
+  private volatile boolean isLoaded;
+
+  private long appliedSeq;
+
+  private long reloadedSeq;
+
+  private long reloadedAt;
+
+  private long checkedAt;
+
+  private long missingSince;
+
+  private Future<Map<Key, Entity>> pendingChanges;
+
+  private long pendingChangesTo;
+
+  private Future<Map<Key, Entity>> pendingQueries;
+
+  private Set<String> pendingQueryHashes;
+
+  private long pendingQueriesTo;
+
+  private SubscriptionMatcher() {
+  }
+
+  private static class Subscription {
+    final String queryHash;
+    final String kindScope;
+    final CompiledFilter filter;
+    final long appliedAt = System.currentTimeMillis();
+
+    Subscription(String queryHash, String kindScope, CompiledFilter filter) {
+      this.queryHash = queryHash;
+      this.kindScope = kindScope;
+      this.filter = filter;
+    }
+  }
+
+  /**
+   * Subscriptions of a namespace and kind.
+   */
+  private static class KindIndex {
+
+    // by property name and value of an EQ or IN predicate
+    final Map<String, TreeMap<Object, List<Subscription>>> buckets =
+        new HashMap<String, TreeMap<Object, List<Subscription>>>();
+
+    // by property name, then by the bound of a GT/GE or LT/LE predicate
+    final Map<String, TreeMap<Object, List<Subscription>>> lowerBounds =
+        new HashMap<String, TreeMap<Object, List<Subscription>>>();
+
+    final Map<String, TreeMap<Object, List<Subscription>>> upperBounds =
+        new HashMap<String, TreeMap<Object, List<Subscription>>>();
+
+    final List<Subscription> scanned = new ArrayList<Subscription>();
+
+    void add(Subscription s) {
+      update(s, true);
+    }
+
+    void remove(Subscription s) {
+      update(s, false);
+    }
+
+    boolean isEmpty() {
+      return buckets.isEmpty() && lowerBounds.isEmpty() && upperBounds.isEmpty()
+          && scanned.isEmpty();
+    }
+
+    private void update(Subscription s, boolean isAdd) {
+      CompiledFilter predicate = selectIndexedPredicate(s.filter);
+      if (predicate == null) {
+        updateList(scanned, s, isAdd);
+        return;
+      }
+      String propName = predicate.getPropName();
+      Map<String, TreeMap<Object, List<Subscription>>> m;
+      List<Object> values;
+      switch (predicate.getOperator()) {
+      case EQ:
+      case IN:
+        m = buckets;
+        values = getMatchedOperands(predicate);
+        break;
+      default:
+        m = isLowerBound(predicate) ? lowerBounds : upperBounds;
+        values = predicate.getOperands().subList(0, 1);
+      }
+      TreeMap<Object, List<Subscription>> byValue = m.get(propName);
+      if (byValue == null) {
+        byValue = new TreeMap<Object, List<Subscription>>(PropertyValueComparator.INSTANCE);
+        m.put(propName, byValue);
+      }
+      for (Object value : values) {
+        updateMap(byValue, value, s, isAdd);
+      }
+      if (byValue.isEmpty()) {
+        m.remove(propName);
+      }
+    }
+
+    /**
+     * Adds the subscriptions that may match the specified entity to the candidates.
+     */
+    void collectCandidates(Entity e, Set<Subscription> candidates) {
+      candidates.addAll(scanned);
+      for (Map.Entry<String, TreeMap<Object, List<Subscription>>> entry : buckets.entrySet()) {
+        for (Object value : getIndexValues(e, entry.getKey())) {
+          List<Subscription> l = entry.getValue().get(value);
+          if (l != null) {
+            candidates.addAll(l);
+          }
+        }
+      }
+      collectBoundCandidates(e, lowerBounds, true, candidates);
+      collectBoundCandidates(e, upperBounds, false, candidates);
+    }
+
+    // a lower bound matches the values above it, including those of every higher type class,
+    // and an upper bound the values below it, including those of every lower type class
+    private void collectBoundCandidates(Entity e,
+        Map<String, TreeMap<Object, List<Subscription>>> bounds, boolean isLower,
+        Set<Subscription> candidates) {
+      for (Map.Entry<String, TreeMap<Object, List<Subscription>>> entry : bounds.entrySet()) {
+        for (Object value : getIndexValues(e, entry.getKey())) {
+          TreeMap<Object, List<Subscription>> byBound = entry.getValue();
+          Map<Object, List<Subscription>> range = isLower ? byBound.headMap(value, true)
+              : byBound.tailMap(value, true);
+          for (List<Subscription> l : range.values()) {
+            candidates.addAll(l);
+          }
+        }
+      }
+    }
+  }
+
+  // returns the predicate to index a subscription by, or null if it has to be scanned
+  private static CompiledFilter selectIndexedPredicate(CompiledFilter filter) {
+    if (filter == null) {
+      return null;
+    }
+    List<CompiledFilter> predicates;
+    if (filter.getOperator() == Op.AND) {
+      predicates = filter.getSubfilters();
+    } else {
+      predicates = new ArrayList<CompiledFilter>();
+      predicates.add(filter);
+    }
+    CompiledFilter rangePredicate = null;
+    for (CompiledFilter p : predicates) {
+      if (!isIndexable(p)) {
+        continue;
+      }
+      if (p.getOperator() == Op.EQ || p.getOperator() == Op.IN) {
+        return p;
+      }
+      if (rangePredicate == null) {
+        rangePredicate = p;
+      }
+    }
+    return rangePredicate;
+  }
+
+  private static boolean isIndexable(CompiledFilter p) {
+    switch (p.getOperator()) {
+    case EQ:
+    case IN:
+    case LT:
+    case LE:
+    case GT:
+    case GE:
+      for (Object operand : getMatchedOperands(p)) {
+        if (PropertyValueComparator.getTypeClass(operand)
+            == PropertyValueComparator.TYPE_CLASS_UNINDEXED) {
+          return false;
+        }
+      }
+      return !p.getOperands().isEmpty();
+    default:
+      return false;
+    }
+  }
+
+  // IN is matched against the operands as received, like the Datastore filter
+  private static List<Object> getMatchedOperands(CompiledFilter p) {
+    return p.getOperator() == Op.IN ? p.getRawOperands() : p.getOperands();
+  }
+
+  private static boolean isLowerBound(CompiledFilter p) {
+    return p.getOperator() == Op.GT || p.getOperator() == Op.GE;
+  }
+
+  // values of the property that can be indexed, including null
+  private static List<Object> getIndexValues(Entity e, String propName) {
+    List<Object> values = new ArrayList<Object>();
+    if (!e.hasProperty(propName)) {
+      return values;
+    }
+    Object value = e.getProperty(propName);
+    Collection<?> c = value instanceof Collection ? (Collection<?>) value
+        : Collections.singletonList(value);
+    for (Object v : c) {
+      if (PropertyValueComparator.getTypeClass(v)
+          != PropertyValueComparator.TYPE_CLASS_UNINDEXED) {
+        values.add(v);
+      }
+    }
+    return values;
+  }
+
+  private static <K> void updateMap(Map<K, List<Subscription>> m, K key, Subscription s,
+      boolean isAdd) {
+    List<Subscription> l = m.get(key);
+    if (l == null) {
+      if (!isAdd) {
+        return;
+      }
+      l = new ArrayList<Subscription>();
+      m.put(key, l);
+    }
+    updateList(l, s, isAdd);
+    if (l.isEmpty()) {
+      m.remove(key);
+    }
+  }
+
+  private static void updateList(List<Subscription> l, Subscription s, boolean isAdd) {
+    if (isAdd) {
+      l.add(s);
+    } else {
+      l.remove(s);
+    }
+  }
+
+  // namespaces can't contain "/"
+  private static String createKindScope(String namespace, String kindName) {
+    return namespace + "/" + kindName;
+  }
+
+  /**
+   * Adds or replaces the subscription of a device to a query. Devices that subscribe to the same
+   * query in the same namespace share a single query subscription.
+   *
+   * @param subId
+   *          subscription id of the device.
+   * @param queryDto
+   *          {@link QueryDto} of the subscription.
+   * @param namespace
+   *          namespace of the entities to match.
+   * @param durationSec
+   *          duration of the subscription in seconds, or 0 if it never expires.
+   */
+  void subscribe(String subId, QueryDto queryDto, String namespace, int durationSec) {
+    String kindScope = createKindScope(namespace, queryDto.getKindName());
+    String queryHash = createQueryHash(kindScope, queryDto);
+    Date now = new Date();
+    Date expiresAt = durationSec > 0 ? new Date(now.getTime() + durationSec * 1000L) : null;
+
+    // persist the shared query in a transaction, so that a concurrent removal is either seen or
+    // sees the new subscription
+    boolean isNewQuery;
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity query;
+      try {
+        query = datastore.get(txn, getKey(queryHash));
+        isNewQuery = false;
+      } catch (EntityNotFoundException e) {
+        query = new Entity(getKey(queryHash));
+        query.setProperty(PROPERTY_KIND_SCOPE, kindScope);
+        query.setUnindexedProperty(PROPERTY_QUERY, new Text(gson.toJson(queryDto)));
+        isNewQuery = true;
+      }
+      query.setUnindexedProperty(PROPERTY_LAST_SUBSCRIBED_AT, now);
+      datastore.put(txn, query);
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+
+    // persist the subscriber
+    Entity subscriber = new Entity(KeyFactory.createKey(SUBSCRIBER_KIND, subId));
+    subscriber.setProperty(PROPERTY_QUERY_HASH, queryHash);
+    subscriber.setProperty(PROPERTY_SHARD, getShard(subId));
+    subscriber.setProperty(PROPERTY_EXPIRES_AT, expiresAt);
+    subscriber.setUnindexedProperty(PROPERTY_INLINE_ENTITY, queryDto.isInlineEntity());
+    datastore.put(subscriber);
+
+    // apply a new query locally and let the other instances apply it
+    lock.writeLock().lock();
+    try {
+      if (!subscriptions.containsKey(queryHash)) {
+        addLocally(new Subscription(queryHash, kindScope, compileFilter(queryDto)));
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (isNewQuery) {
+      recordChange(queryHash);
+    }
+  }
+
+  /**
+   * Removes the specified subscriptions of devices. Shared queries that are left without
+   * subscribers are removed by {@link #removeQueryIfUnused(String)}.
+   *
+   * @param subIds
+   *          subscription ids.
+   */
+  void unsubscribe(Collection<String> subIds) {
+    List<Key> keys = new ArrayList<Key>();
+    for (String subId : subIds) {
+      keys.add(KeyFactory.createKey(SUBSCRIBER_KIND, subId));
+    }
+    datastore.delete(keys);
+  }
+
+  /**
+   * Moves the specified subscriptions of devices to new subscription ids, keeping the queries they
+   * are subscribed to. Each subscription is moved in its own cross-group transaction, and one that
+   * has already been moved is skipped, so the move can be safely repeated.
+   *
+   * @param newSubIds
+   *          map of each subscription id to its new subscription id.
+   */
+  void moveSubscribers(Map<String, String> newSubIds) {
+    for (Map.Entry<String, String> entry : newSubIds.entrySet()) {
+      Key oldKey = KeyFactory.createKey(SUBSCRIBER_KIND, entry.getKey());
+      Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+      try {
+        Entity old = datastore.get(txn, oldKey);
+        Entity subscriber = new Entity(KeyFactory.createKey(SUBSCRIBER_KIND, entry.getValue()));
+        subscriber.setProperty(PROPERTY_QUERY_HASH, old.getProperty(PROPERTY_QUERY_HASH));
+        subscriber.setProperty(PROPERTY_SHARD, getShard(entry.getValue()));
+        subscriber.setProperty(PROPERTY_EXPIRES_AT, old.getProperty(PROPERTY_EXPIRES_AT));
+        subscriber.setUnindexedProperty(PROPERTY_INLINE_ENTITY,
+            old.getProperty(PROPERTY_INLINE_ENTITY));
+        datastore.put(txn, subscriber);
+        datastore.delete(txn, oldKey);
+        txn.commit();
+      } catch (EntityNotFoundException e) {
+        continue;
+      } catch (ConcurrentModificationException e) {
+        log.info("SubscriptionMatcher: subscriber " + entry.getKey() + " is being modified, "
+            + "not moved");
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the specified shared query unless a device has subscribed to it within the last
+   * {@link #UNUSED_QUERY_GRACE_MILLIS}. The check and the deletion run in a transaction, so that
+   * a concurrent subscription keeps the query.
+   *
+   * @param queryHash
+   *          hash of the shared query.
+   */
+  void removeQueryIfUnused(String queryHash) {
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity query = datastore.get(txn, getKey(queryHash));
+      Date lastSubscribedAt = (Date) query.getProperty(PROPERTY_LAST_SUBSCRIBED_AT);
+      if (lastSubscribedAt != null
+          && System.currentTimeMillis() - lastSubscribedAt.getTime() < UNUSED_QUERY_GRACE_MILLIS) {
+        return;
+      }
+      datastore.delete(txn, query.getKey());
+      txn.commit();
+    } catch (EntityNotFoundException e) {
+      return;
+    } catch (ConcurrentModificationException e) {
+      log.info("SubscriptionMatcher: query " + queryHash + " is in use, not removed");
+      return;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+      removeLocally(queryHash);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    recordChange(queryHash);
+  }
+
+  /**
+   * Returns the hashes of all shared queries that match any of the specified entities, each with
+   * the entities it matches.
+   *
+   * @param entities
+   *          saved CloudEntities.
+   * @return {@link Map} of query hashes to matched entities, or null if the subscriptions haven't
+   *         been loaded on this instance, in which case the entities have to be matched by
+   *         {@link EntityMatchingServlet}.
+   */
+  Map<String, List<Entity>> match(List<Entity> entities) {
+    applyChanges();
+    if (!isLoaded) {
+      return null;
+    }
+    Map<String, List<Entity>> matches = new LinkedHashMap<String, List<Entity>>();
+    int candidateCount = 0;
+    lock.readLock().lock();
+    try {
+      for (Entity e : entities) {
+        String kindName = (String) e.getProperty(EntityDto.PROP_KIND_NAME);
+        KindIndex index = indexes.get(createKindScope(e.getKey().getNamespace(),
+            kindName == null ? e.getKind() : kindName));
+        if (index == null) {
+          continue;
+        }
+        Set<Subscription> candidates = new HashSet<Subscription>();
+        index.collectCandidates(e, candidates);
+        candidateCount += candidates.size();
+        for (Subscription s : candidates) {
+          if (s.filter == null || s.filter.matches(e)) {
+            List<Entity> matched = matches.get(s.queryHash);
+            if (matched == null) {
+              matched = new ArrayList<Entity>();
+              matches.put(s.queryHash, matched);
+            }
+            matched.add(e);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    log.fine("SubscriptionMatcher: entities: " + entities.size() + ", candidates: "
+        + candidateCount + ", matched: " + matches.size());
+    return matches;
+  }
+
+  // must be called while holding the write lock
+  private void addLocally(Subscription s) {
+    subscriptions.put(s.queryHash, s);
+    KindIndex index = indexes.get(s.kindScope);
+    if (index == null) {
+      index = new KindIndex();
+      indexes.put(s.kindScope, index);
+    }
+    index.add(s);
+  }
+
+  // must be called while holding the write lock
+  private void removeLocally(String queryHash) {
+    Subscription s = subscriptions.remove(queryHash);
+    if (s == null) {
+      return;
+    }
+    KindIndex index = indexes.get(s.kindScope);
+    index.remove(s);
+    if (index.isEmpty()) {
+      indexes.remove(s.kindScope);
+    }
+  }
+
+  // numbers the change of a shared query and writes it to the change log
+  private void recordChange(String queryHash) {
+    Long seq = memcache.increment(GENERATION_KEY, 1, System.currentTimeMillis());
+    if (seq == null) {
+      log.warning("SubscriptionMatcher: couldn't number the change of query " + queryHash);
+      return;
+    }
+    Entity change = new Entity(getChangeKey(seq));
+    change.setUnindexedProperty(PROPERTY_SEQUENCE, seq);
+    change.setUnindexedProperty(PROPERTY_QUERY_HASH, queryHash);
+    change.setUnindexedProperty(PROPERTY_CHANGED_AT, new Date());
+    datastore.put(change);
+  }
+
+  /**
+   * Loads all shared queries unless they have been loaded, waiting for a load in progress. It
+   * reads every subscription, so it is meant for warmup requests and task queue requests only.
+   */
+  void load() {
+    changeLock.lock();
+    try {
+      if (!isLoaded) {
+        pendingChanges = null;
+        pendingQueries = null;
+        missingSince = 0;
+        reload();
+      }
+    } finally {
+      changeLock.unlock();
+    }
+  }
+
+  // applies the changes made by other instances unless another request is applying them; an
+  // instance that has fallen behind is marked as not loaded, to be reloaded by load()
+  private void applyChanges() {
+    if (!changeLock.tryLock()) {
+      return;
+    }
+    try {
+      if (isLoaded && !advance()) {
+        isLoaded = false;
+        log.info("SubscriptionMatcher: fallen behind the subscription changes, reload needed");
+      }
+    } finally {
+      changeLock.unlock();
+    }
+  }
+
+  /**
+   * Takes the next step of applying changes without waiting for Datastore: applies the queries of
+   * a completed read, reads the queries of completed change reads, or starts reading new changes.
+   * Returns false if this instance has fallen behind and needs to reload all queries.
+   */
+  private boolean advance() {
+    long now = System.currentTimeMillis();
+    if (pendingQueries != null) {
+      if (pendingQueries.isDone()) {
+        Map<Key, Entity> queries = getResult(pendingQueries);
+        if (queries != null) {
+          applyQueries(pendingQueryHashes, queries);
+          appliedSeq = pendingQueriesTo;
+        }
+        pendingQueries = null;
+      }
+      return true;
+    }
+    if (pendingChanges != null) {
+      if (!pendingChanges.isDone()) {
+        return true;
+      }
+      Map<Key, Entity> changes = getResult(pendingChanges);
+      pendingChanges = null;
+      return changes == null || readChanges(changes, now);
+    }
+    if (now - checkedAt < GENERATION_CHECK_INTERVAL_MILLIS) {
+      return true;
+    }
+    checkedAt = now;
+
+    // start a new counter if it has been evicted, which makes all instances reload
+    Long current = (Long) memcache.get(GENERATION_KEY);
+    if (current == null) {
+      memcache.put(GENERATION_KEY, now, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      return true;
+    }
+    if (current < appliedSeq || current - appliedSeq > CHANGE_LOG_SIZE) {
+      return false;
+    }
+    if (current > appliedSeq) {
+      pendingChangesTo = Math.min(current, appliedSeq + MAX_CHANGES_PER_READ);
+      List<Key> keys = new ArrayList<Key>();
+      for (long seq = appliedSeq + 1; seq <= pendingChangesTo; seq++) {
+        keys.add(getChangeKey(seq));
+      }
+      pendingChanges = asyncDatastore.get(keys);
+    }
+    return true;
+  }
+
+  // starts reading the queries of the changes that follow the applied ones, in order
+  private boolean readChanges(Map<Key, Entity> changes, long now) {
+    Set<String> queryHashes = new HashSet<String>();
+    long seq = appliedSeq;
+    for (long next = appliedSeq + 1; next <= pendingChangesTo; next++) {
+      Entity change = changes.get(getChangeKey(next));
+      Long sequence = change == null ? null : (Long) change.getProperty(PROPERTY_SEQUENCE);
+
+      // changes from before a reload are only needed if the reload may have missed them
+      if (next <= reloadedSeq) {
+        Date changedAt = change == null ? null : (Date) change.getProperty(PROPERTY_CHANGED_AT);
+        if (sequence != null && sequence == next && changedAt != null
+            && changedAt.getTime() >= reloadedAt - CONSISTENCY_LAG_MILLIS) {
+          queryHashes.add((String) change.getProperty(PROPERTY_QUERY_HASH));
+        }
+        seq = next;
+        continue;
+      }
+
+      // a later change in the slot means that this instance has fallen behind, and an earlier
+      // one that the change hasn't been written yet
+      if (sequence != null && sequence > next) {
+        return false;
+      }
+      if (sequence == null || sequence < next) {
+        if (missingSince == 0) {
+          missingSince = now;
+        } else if (now - missingSince > MISSING_CHANGE_TIMEOUT_MILLIS) {
+          return false;
+        }
+        break;
+      }
+      missingSince = 0;
+      queryHashes.add((String) change.getProperty(PROPERTY_QUERY_HASH));
+      seq = next;
+    }
+
+    if (queryHashes.isEmpty()) {
+      appliedSeq = seq;
+      return true;
+    }
+    List<Key> keys = new ArrayList<Key>();
+    for (String queryHash : queryHashes) {
+      keys.add(getKey(queryHash));
+    }
+    pendingQueryHashes = queryHashes;
+    pendingQueriesTo = seq;
+    pendingQueries = asyncDatastore.get(keys);
+    checkedAt = 0;
+    return true;
+  }
+
+  // replaces the specified queries with their stored state
+  private void applyQueries(Set<String> queryHashes, Map<Key, Entity> queries) {
+    lock.writeLock().lock();
+    try {
+      for (String queryHash : queryHashes) {
+        removeLocally(queryHash);
+        Entity e = queries.get(getKey(queryHash));
+        Subscription s = e == null ? null : createSubscription(e);
+        if (s != null) {
+          addLocally(s);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    log.fine("SubscriptionMatcher: applied changes of " + queryHashes.size() + " queries");
+  }
+
+  // returns null if the read has failed, in which case it is retried on the next check
+  private static Map<Key, Entity> getResult(Future<Map<Key, Entity>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      log.warning("SubscriptionMatcher: failed to read subscription changes: " + e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Reads all shared queries from Datastore. Queries that have been applied to this instance
+   * recently are kept even if the query doesn't return them yet, and the changes made shortly
+   * before the reload are applied again afterwards.
+   */
+  private void reload() {
+    long startTime = System.currentTimeMillis();
+    Long current = (Long) memcache.get(GENERATION_KEY);
+    if (current == null) {
+      memcache.put(GENERATION_KEY, startTime, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      current = (Long) memcache.get(GENERATION_KEY);
+    }
+
+    Map<String, Subscription> newSubscriptions = new HashMap<String, Subscription>();
+    Query q = new Query(SUBSCRIPTION_KIND);
+    for (Entity e : datastore.prepare(q).asIterable(
+        FetchOptions.Builder.withChunkSize(RELOAD_CHUNK_SIZE))) {
+      Subscription s = createSubscription(e);
+      if (s != null) {
+        newSubscriptions.put(s.queryHash, s);
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+      for (Subscription s : subscriptions.values()) {
+        if (!newSubscriptions.containsKey(s.queryHash)
+            && s.appliedAt >= startTime - CONSISTENCY_LAG_MILLIS) {
+          newSubscriptions.put(s.queryHash, s);
+        }
+      }
+      subscriptions = new HashMap<String, Subscription>();
+      indexes = new HashMap<String, KindIndex>();
+      for (Subscription s : newSubscriptions.values()) {
+        addLocally(s);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    // without a counter, the next check starts over
+    checkedAt = startTime;
+    reloadedAt = startTime;
+    reloadedSeq = current == null ? 0 : current;
+    appliedSeq = Math.max(0, reloadedSeq - RELOAD_REPLAYED_CHANGES);
+    isLoaded = true;
+    log.info("SubscriptionMatcher: reloaded " + newSubscriptions.size() + " queries of "
+        + indexes.size() + " kinds in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  // returns null if the stored query is invalid
+  private static Subscription createSubscription(Entity e) {
+    QueryDto queryDto;
+    try {
+      queryDto = gson.fromJson(((Text) e.getProperty(PROPERTY_QUERY)).getValue(), QueryDto.class);
+    } catch (JsonSyntaxException ex) {
+      log.warning("SubscriptionMatcher: invalid query of " + e.getKey().getName());
+      return null;
+    }
+    QueryOperations.resolveNestedPaths(queryDto);
+    return new Subscription(e.getKey().getName(), (String) e.getProperty(PROPERTY_KIND_SCOPE),
+        compileFilter(queryDto));
+  }
+
+  private static CompiledFilter compileFilter(QueryDto queryDto) {
+    return queryDto.getFilterDto() == null ? null : queryDto.getFilterDto().compile();
+  }
+
+  /**
+   * Returns the hash that identifies a shared query: the namespace and kind, the Prospective
+   * Search query string with its whitespace normalized, and the sorted schema.
+   */
+  static String createQueryHash(String kindScope, QueryDto queryDto) {
+    String query = queryDto.buildProsSearchQuery().replaceAll("\\s+", " ");
+    Map<String, FieldType> schema = new TreeMap<String, FieldType>(
+        queryDto.buildProsSearchSchema());
+    return QueryCache.hash(kindScope + "|" + query + "|" + schema);
+  }
+
+  /**
+   * Returns the fan-out shard of the specified subscription id.
+   */
+  static long getShard(String subId) {
+    return (subId.hashCode() & Integer.MAX_VALUE) % SUBSCRIBER_SHARDS;
+  }
+
+  private static Key getKey(String queryHash) {
+    return KeyFactory.createKey(SUBSCRIPTION_KIND, queryHash);
+  }
+
+  private static Key getChangeKey(long seq) {
+    return KeyFactory.createKey(CHANGE_KIND, seq % CHANGE_LOG_SIZE + 1);
+  }
+}
@@ -13,16 +13,18 @@
  */
 package com.google.cloud.backend.spi;
 
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
 import com.google.cloud.backend.config.BackendConfigManager;
 import com.google.cloud.backend.config.StringUtility;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
 
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.logging.Logger;
 
@@ -31,17 +33,16 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * HttpServlet for removing device and Prospective Search API subscription entities.
+ * HttpServlet for removing device and query subscription entities.
  *
  * It is intended to be called by Push Task Queue, so the request is retried if it fails.
  */
 public class SubscriptionRemovalServlet extends HttpServlet {
   private static final long serialVersionUID = 1L;
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
   private static final Logger log =
       Logger.getLogger(SubscriptionRemovalServlet.class.getName());
   private static final Gson gson = new Gson();
+  private static final Type stringMapType = new TypeToken<Map<String, String>>() {}.getType();
   private static final DeviceSubscription deviceSubscription = new DeviceSubscription();
   private static final BackendConfigManager backendConfigManager = new BackendConfigManager();
 
@@ -59,6 +60,10 @@ public class SubscriptionRemovalServlet extends HttpServlet {
       removeDeviceSubscription(req);
     } else if (SubscriptionUtility.REQUEST_TYPE_PSI_SUB.compareTo(type) == 0) {
       removePsiSubscription(req);
+    } else if (SubscriptionUtility.REQUEST_TYPE_DEVICE_CLEANUP.compareTo(type) == 0) {
+      clearDevices(req);
+    } else if (SubscriptionUtility.REQUEST_TYPE_GCM_RESULTS.compareTo(type) == 0) {
+      processGcmResults(req);
     } else {
       throw new IllegalArgumentException("Invalid value of parameter 'type'.");
     }
@@ -80,13 +85,50 @@ public class SubscriptionRemovalServlet extends HttpServlet {
       return;
     }
 
-    for (String subId : subIds) {
-      try {
-        prosSearch.unsubscribe(QueryOperations.PROS_SEARCH_DEFAULT_TOPIC, subId);
-      } catch (IllegalArgumentException e) {
-        log.info("Unsubscribe " + subId + " from PSI encounters error, " + e.getMessage());
-      }
+    SubscriptionMatcher.getInstance().unsubscribe(Arrays.asList(subIds));
+  }
+
+  private void clearDevices(HttpServletRequest req) {
+    String deviceIdsParameter = req.getParameter("deviceIds");
+    if (StringUtility.isNullOrEmpty(deviceIdsParameter)) {
+      log.warning("Missing 'deviceIds' argument on task queue request. This indicates a bug");
+      return;
     }
+
+    String[] deviceIds;
+    try {
+      deviceIds = gson.fromJson(deviceIdsParameter, String[].class);
+    } catch (JsonSyntaxException e) {
+      log.warning("Invalid format of 'deviceIds' argument on task queue request. " +
+          "This indicates a bug");
+      return;
+    }
+
+    SubscriptionUtility.clearSubscriptionAndDeviceEntity(Arrays.asList(deviceIds));
+  }
+
+  private void processGcmResults(HttpServletRequest req) {
+    String canonicalIdsParameter = req.getParameter("canonicalIds");
+    String deviceIdsParameter = req.getParameter("deviceIds");
+    if (StringUtility.isNullOrEmpty(canonicalIdsParameter)
+        || StringUtility.isNullOrEmpty(deviceIdsParameter)) {
+      log.warning("Missing 'canonicalIds' or 'deviceIds' argument on task queue request. " +
+          "This indicates a bug");
+      return;
+    }
+
+    Map<String, String> canonicalIds;
+    String[] deviceIds;
+    try {
+      canonicalIds = gson.fromJson(canonicalIdsParameter, stringMapType);
+      deviceIds = gson.fromJson(deviceIdsParameter, String[].class);
+    } catch (JsonSyntaxException e) {
+      log.warning("Invalid format of 'canonicalIds' or 'deviceIds' argument on task queue " +
+          "request. This indicates a bug");
+      return;
+    }
+
+    SubscriptionUtility.processGcmResults(canonicalIds, Arrays.asList(deviceIds));
   }
 
   /**
@@ -13,18 +13,19 @@
  */
 package com.google.cloud.backend.spi;
 
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchService;
-import com.google.appengine.api.prospectivesearch.ProspectiveSearchServiceFactory;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.cloud.backend.config.StringUtility;
 import com.google.gson.Gson;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.logging.Logger;
 
 /**
  * Utility class with helper functions to decode subscription information and handle
@@ -34,16 +35,17 @@ public class SubscriptionUtility {
 
   protected static final String IOS_DEVICE_PREFIX = "ios_";
   protected static final String GCM_KEY_SUBID = "subId";
+  protected static final String GCM_KEY_SUBIDS = "subIds";
+  protected static final String GCM_KEY_ENTITIES = "entities";
   protected static final String REQUEST_TYPE_DEVICE_SUB = "deviceSubscriptionRequest";
   protected static final String REQUEST_TYPE_PSI_SUB = "PSISubscriptionRequest";
+  protected static final String REQUEST_TYPE_DEVICE_CLEANUP = "deviceCleanupRequest";
+  protected static final String REQUEST_TYPE_GCM_RESULTS = "gcmResultsRequest";
 
   /**
    * A key word to indicate "query" type in Prospective Search API subscription id.
    */
   public static final String GCM_TYPEID_QUERY = "query";
-  private static final ProspectiveSearchService prosSearch = ProspectiveSearchServiceFactory
-      .getProspectiveSearchService();
-  private static final Logger log = Logger.getLogger(SubscriptionUtility.class.getName());
 
   /**
    * An enumeration of supported mobile device type.
@@ -115,21 +117,89 @@ public class SubscriptionUtility {
    */
   public static void clearSubscriptionAndDeviceEntity(List<String> deviceIds) {
     DeviceSubscription deviceSubscription = new DeviceSubscription();
+    Map<String, Entity> devices = deviceSubscription.getAll(deviceIds);
+    Set<String> subIds = deviceSubscription.getSubscriptionIds(devices.values());
 
-    for (String deviceId : deviceIds) {
-      Set<String> subIds = deviceSubscription.getSubscriptionIds(deviceId);
+    // Delete all subscriptions for the devices
+    SubscriptionMatcher.getInstance().unsubscribe(subIds);
 
-      // Delete all subscriptions for the device from Prospective Search API
-      for (String subId : subIds) {
-        try {
-          prosSearch.unsubscribe(QueryOperations.PROS_SEARCH_DEFAULT_TOPIC, subId);
-        } catch (IllegalArgumentException e) {
-          log.warning("Unsubscribe " + subId + " from PSI encounters error, " + e.getMessage());
-        }
+    // Remove devices from datastore
+    deviceSubscription.deleteAll(deviceIds);
+  }
+
+  /**
+   * Enqueues device ids in task queue for their subscriptions and device subscription entities to
+   * be cleared, in batches of {@link DeviceSubscription#BATCH_DELETE_SIZE}.
+   *
+   * @param deviceIds A list of device ids for which subscriptions are to be removed
+   */
+  protected static void enqueueClearSubscriptionAndDeviceEntity(List<String> deviceIds) {
+    Queue deviceTokenCleanupQueue = QueueFactory.getQueue("subscription-removal");
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (int i = 0; i < deviceIds.size(); i += DeviceSubscription.BATCH_DELETE_SIZE) {
+      List<String> batch = deviceIds.subList(i,
+          Math.min(deviceIds.size(), i + DeviceSubscription.BATCH_DELETE_SIZE));
+      tasks.add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url("/admin/push/devicesubscription/delete")
+          .param("deviceIds", new Gson().toJson(batch))
+          .param("type", SubscriptionUtility.REQUEST_TYPE_DEVICE_CLEANUP));
+    }
+    if (!tasks.isEmpty()) {
+      deviceTokenCleanupQueue.add(tasks);
+    }
+  }
+
+  /**
+   * Processes the results of a batch of GCM sends: moves the subscriptions of devices that GCM
+   * reported a canonical registration id for, and purges dead registrations.
+   *
+   * @param canonicalIds A map of registration id to its canonical registration id
+   * @param deadDeviceIds A list of registration ids that are no longer valid
+   */
+  public static void processGcmResults(Map<String, String> canonicalIds,
+      List<String> deadDeviceIds) {
+    if (!canonicalIds.isEmpty()) {
+      Map<String, String> newSubIds = new DeviceSubscription().migrateToCanonicalIds(canonicalIds);
+      if (!newSubIds.isEmpty()) {
+        SubscriptionMatcher.getInstance().moveSubscribers(newSubIds);
       }
+    }
+    if (!deadDeviceIds.isEmpty()) {
+      clearSubscriptionAndDeviceEntity(deadDeviceIds);
+    }
+  }
 
-      // Remove device from datastore
-      deviceSubscription.delete(deviceId);
+  /**
+   * Enqueues the results of a batch of GCM sends in task queue to be processed by
+   * {@link #processGcmResults(Map, List)}, in tasks of at most
+   * {@link DeviceSubscription#BATCH_DELETE_SIZE} registration ids of each type.
+   *
+   * @param canonicalIds A map of registration id to its canonical registration id
+   * @param deadDeviceIds A list of registration ids that are no longer valid
+   */
+  protected static void enqueueProcessGcmResults(Map<String, String> canonicalIds,
+      List<String> deadDeviceIds) {
+    Queue deviceTokenCleanupQueue = QueueFactory.getQueue("subscription-removal");
+    List<Map.Entry<String, String>> entries =
+        new ArrayList<Map.Entry<String, String>>(canonicalIds.entrySet());
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    int batchSize = DeviceSubscription.BATCH_DELETE_SIZE;
+    for (int i = 0; i < Math.max(entries.size(), deadDeviceIds.size()); i += batchSize) {
+      Map<String, String> canonicalIdsBatch = new HashMap<String, String>();
+      for (Map.Entry<String, String> entry : entries.subList(Math.min(entries.size(), i),
+          Math.min(entries.size(), i + batchSize))) {
+        canonicalIdsBatch.put(entry.getKey(), entry.getValue());
+      }
+      List<String> deadDeviceIdsBatch = deadDeviceIds.subList(Math.min(deadDeviceIds.size(), i),
+          Math.min(deadDeviceIds.size(), i + batchSize));
+      tasks.add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url("/admin/push/devicesubscription/delete")
+          .param("canonicalIds", new Gson().toJson(canonicalIdsBatch))
+          .param("deviceIds", new Gson().toJson(deadDeviceIdsBatch))
+          .param("type", SubscriptionUtility.REQUEST_TYPE_GCM_RESULTS));
+    }
+    if (!tasks.isEmpty()) {
+      deviceTokenCleanupQueue.add(tasks);
     }
   }
 
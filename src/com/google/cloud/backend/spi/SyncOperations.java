@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.users.User;
+import com.google.cloud.backend.beans.EntityDto;
+import com.google.cloud.backend.beans.SyncDto;
+import com.google.cloud.backend.config.StringUtility;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Utility class that provides incremental sync of CloudEntities.
+ *
+ * Saved CloudEntities are read in the order of their update times, and deleted ones from the
+ * {@link #TOMBSTONE_KIND} entities written when they are deleted, in the order of their deletion
+ * times. The sync token holds a Datastore cursor for each of the two queries, so a sync resumes
+ * exactly where the previous one has stopped: a CloudEntity that is saved again moves past the
+ * cursor and is returned by the next sync. The token also holds the time it was issued, as it
+ * can't be resumed once the tombstones it would read have been removed.
+ *
+ * Update and deletion times are taken when a request starts rather than when its writes commit,
+ * and on instances whose clocks may differ, so a write can commit behind a position that a sync has
+ * already read past. The cursors are therefore never moved past changes that are more recent than
+ * {@link #SAFETY_WINDOW_MILLIS}: those changes are returned, but are read again by the next sync.
+ * Clients need to deduplicate the changes they receive by id and updatedAt.
+ *
+ * An update that races with a deletion can save a CloudEntity again after its tombstone has been
+ * written. Saves remove such tombstones afterwards (see {@link #deleteStaleTombstones}), but until
+ * then a sync can return the same id both as an entry and as a tombstone, from the two independent
+ * queries. Clients need to keep whichever of the two has the later updatedAt, which is the
+ * deletion time for a tombstone.
+ */
+public class SyncOperations {
+
+  /**
+   * Tombstone entity name. A tombstone is a child of the key of the deleted CloudEntity.
+   */
+  static final String TOMBSTONE_KIND = "_Tombstone";
+
+  static final String PROPERTY_KIND_NAME = "KindName";
+
+  static final String PROPERTY_DELETED_AT = "DeletedAt";
+
+  /**
+   * Copy of the indexed properties of the deleted CloudEntity, which are all that subscription
+   * queries can filter on, so the deletion can be matched with subscriptions later.
+   */
+  static final String PROPERTY_ENTITY = "Entity";
+
+  /**
+   * Tombstones older than this are removed by {@link TombstoneSweeperServlet}. A sync token that
+   * is older can't be resumed, and the client needs to sync from the beginning.
+   */
+  static final int TOMBSTONE_RETENTION_DAYS = 30;
+
+  static final int DEFAULT_LIMIT = 100;
+
+  static final int MAX_LIMIT = 1000;
+
+  // longest time between the time a write is stamped with and its commit, including the request
+  // deadline and differences between the clocks of instances
+  static final long SAFETY_WINDOW_MILLIS = 2 * 60 * 1000;
+
+  private static final String TOMBSTONE_NAME = "deleted";
+
+  // web-safe cursors don't contain this separator
+  private static final String TOKEN_SEPARATOR = "|";
+
+  private static final Logger log = Logger.getLogger(SyncOperations.class.getName());
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  private static final SyncOperations _instance = new SyncOperations();
+
+  /**
+   * Returns the Singleton instance.
+   */
+  public static SyncOperations getInstance() {
+    return _instance;
+  }
+
+  private SyncOperations() {
+  }
+
+  /**
+   * Returns the CloudEntities of the kind of the specified {@link SyncDto} that have been saved or
+   * deleted since its sync token.
+   *
+   * @param syncDto
+   *          {@link SyncDto} with the kind name, the sync token and the limit.
+   * @param user
+   *          {@link User} who requested the sync.
+   * @return {@link SyncDto} with the changes and a new sync token.
+   * @throws IllegalArgumentException
+   *           if the sync token or the limit is invalid.
+   */
+  protected SyncDto sync(SyncDto syncDto, User user) {
+    String kindName = syncDto.getKindName();
+    SecurityChecker.getInstance().checkIfKindNameAccessible(kindName);
+    int limit = syncDto.getLimit() == null ? DEFAULT_LIMIT : syncDto.getLimit();
+    if (limit <= 0 || limit > MAX_LIMIT) {
+      throw new IllegalArgumentException("sync: limit must be between 1 and " + MAX_LIMIT);
+    }
+
+    // decode the sync token
+    Cursor entityCursor = null;
+    Cursor tombstoneCursor = null;
+    String token = syncDto.getSyncToken();
+    if (!StringUtility.isNullOrEmpty(token)) {
+      String[] parts = token.split(Pattern.quote(TOKEN_SEPARATOR), -1);
+      long issuedAt;
+      try {
+        issuedAt = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+      } catch (NumberFormatException e) {
+        issuedAt = -1;
+      }
+      if (issuedAt < 0) {
+        throw new IllegalArgumentException("sync: invalid sync token");
+      }
+      if (issuedAt < getRetentionCutoff().getTime()) {
+        throw new IllegalArgumentException("sync: sync token has expired");
+      }
+      entityCursor = decodeCursor(parts[0]);
+      tombstoneCursor = decodeCursor(parts[1]);
+    }
+
+    // changes after this time are returned, but the cursors are not moved past them
+    long safeTime = System.currentTimeMillis() - SAFETY_WINDOW_MILLIS;
+
+    // read the saved CloudEntities in the order of their update times
+    Query q = SecurityChecker.getInstance().createKindQueryWithNamespace(kindName, user);
+    q.addSort(EntityDto.PROP_UPDATED_AT, SortDirection.ASCENDING).setKeysOnly();
+    QueryResultIterator<Entity> keys = datastore.prepare(q).asQueryResultIterator(
+        createFetchOptions(limit, entityCursor));
+    List<Key> keyList = new ArrayList<Key>();
+    List<Cursor> keyCursors = new ArrayList<Cursor>();
+    while (keys.hasNext()) {
+      keyList.add(keys.next().getKey());
+      keyCursors.add(keys.getCursor());
+    }
+    Map<String, Entity> entities = CrudOperations.getInstance().getAllEntitiesByKeyList(keyList);
+    SyncDto result = new SyncDto();
+    result.setKindName(kindName);
+    Cursor nextEntityCursor = entityCursor;
+    boolean isEntityCursorHeld = false;
+    for (int i = 0; i < keyList.size(); i++) {
+
+      // CloudEntities deleted in the meantime are left to their tombstones
+      Entity e = entities.get(keyList.get(i).getName());
+      if (e != null) {
+        EntityDto cd = EntityDto.createFromEntity(e);
+        result.getEntries().add(cd);
+        isEntityCursorHeld |= cd.getUpdatedAt() == null
+            || cd.getUpdatedAt().getTime() > safeTime;
+      }
+      if (!isEntityCursorHeld) {
+        nextEntityCursor = keyCursors.get(i);
+      }
+    }
+
+    // read the deleted CloudEntities in the order of their deletion times
+    Query tq = createQueryInNamespace(TOMBSTONE_KIND, q.getNamespace());
+    tq.setFilter(new FilterPredicate(PROPERTY_KIND_NAME, FilterOperator.EQUAL, kindName));
+    tq.addSort(PROPERTY_DELETED_AT, SortDirection.ASCENDING);
+    QueryResultIterator<Entity> tombstones = datastore.prepare(tq).asQueryResultIterator(
+        createFetchOptions(limit, tombstoneCursor));
+    Cursor nextTombstoneCursor = tombstoneCursor;
+    boolean isTombstoneCursorHeld = false;
+    while (tombstones.hasNext()) {
+      Entity t = tombstones.next();
+      EntityDto cd = new EntityDto();
+      cd.setId(t.getKey().getParent().getName());
+      cd.setKindName(kindName);
+      cd.setUpdatedAt((Date) t.getProperty(PROPERTY_DELETED_AT));
+      result.getTombstones().add(cd);
+      isTombstoneCursorHeld |= cd.getUpdatedAt().getTime() > safeTime;
+      if (!isTombstoneCursorHeld) {
+        nextTombstoneCursor = tombstones.getCursor();
+      }
+    }
+
+    // build a new sync token; a full page is only followed by more if the cursor has moved past
+    // it, as changes within the safety window are read again until they have left it
+    result.setSyncToken(encodeCursor(nextEntityCursor) + TOKEN_SEPARATOR
+        + encodeCursor(nextTombstoneCursor) + TOKEN_SEPARATOR + System.currentTimeMillis());
+    result.setHasMore((keyList.size() == limit && !isEntityCursorHeld)
+        || (result.getTombstones().size() == limit && !isTombstoneCursorHeld));
+    return result;
+  }
+
+  /**
+   * Returns the tombstones of the specified CloudEntities, to be written when they are deleted.
+   *
+   * @param deletedEntities
+   *          CloudEntities that are being deleted.
+   */
+  static List<Entity> createTombstones(Collection<Entity> deletedEntities) {
+    Date now = new Date();
+    List<Entity> tombstones = new ArrayList<Entity>();
+    for (Entity e : deletedEntities) {
+      Entity t = new Entity(KeyFactory.createKey(e.getKey(), TOMBSTONE_KIND, TOMBSTONE_NAME));
+      t.setProperty(PROPERTY_KIND_NAME, e.getKind());
+      t.setProperty(PROPERTY_DELETED_AT, now);
+      EmbeddedEntity copy = new EmbeddedEntity();
+      for (Map.Entry<String, Object> p : e.getProperties().entrySet()) {
+        if (!e.isUnindexedProperty(p.getKey())) {
+          copy.setProperty(p.getKey(), p.getValue());
+        }
+      }
+      t.setUnindexedProperty(PROPERTY_ENTITY, copy);
+      tombstones.add(t);
+    }
+    return tombstones;
+  }
+
+  /**
+   * Deletes the tombstones left behind by CloudEntities that have been saved again after their
+   * deletion. Each tombstone is deleted in a transaction on the entity group of its CloudEntity,
+   * and only if that CloudEntity still exists, so a deletion that commits after the save keeps
+   * the tombstone it has written.
+   *
+   * @param savedKeys
+   *          keys of CloudEntities that have been saved.
+   */
+  static void deleteStaleTombstones(Collection<Key> savedKeys) {
+    List<Key> tombstoneKeys = new ArrayList<Key>();
+    for (Key k : savedKeys) {
+      tombstoneKeys.add(KeyFactory.createKey(k, TOMBSTONE_KIND, TOMBSTONE_NAME));
+    }
+    for (Key tombstoneKey : datastore.get(tombstoneKeys).keySet()) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        datastore.get(txn, tombstoneKey.getParent());
+        datastore.delete(txn, tombstoneKey);
+        txn.commit();
+      } catch (EntityNotFoundException e) {
+        // deleted again, so the tombstone is current
+      } catch (ConcurrentModificationException e) {
+        log.warning("deleteStaleTombstones: " + tombstoneKey + " is being modified. Skipping");
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the deleted CloudEntity restored from the specified tombstone, with the properties
+   * that can be matched with subscriptions, or null if the tombstone holds no copy of it.
+   */
+  static Entity restoreDeletedEntity(Entity tombstone) {
+    EmbeddedEntity copy = (EmbeddedEntity) tombstone.getProperty(PROPERTY_ENTITY);
+    if (copy == null) {
+      return null;
+    }
+    Entity e = new Entity(tombstone.getParent());
+    for (Map.Entry<String, Object> p : copy.getProperties().entrySet()) {
+      e.setProperty(p.getKey(), p.getValue());
+    }
+    return e;
+  }
+
+  /**
+   * Returns the time before which tombstones are removed.
+   */
+  static Date getRetentionCutoff() {
+    return new Date(System.currentTimeMillis() - TOMBSTONE_RETENTION_DAYS * 24L * 60 * 60 * 1000);
+  }
+
+  private static FetchOptions createFetchOptions(int limit, Cursor startCursor) {
+    FetchOptions fo = FetchOptions.Builder.withLimit(limit);
+    if (startCursor != null) {
+      fo.startCursor(startCursor);
+    }
+    return fo;
+  }
+
+  private static Cursor decodeCursor(String s) {
+    return s.isEmpty() ? null : Cursor.fromWebSafeString(s);
+  }
+
+  private static String encodeCursor(Cursor cursor) {
+    return cursor == null ? "" : cursor.toWebSafeString();
+  }
+
+  private static Query createQueryInNamespace(String kind, String namespace) {
+    String origNamespace = NamespaceManager.get();
+    NamespaceManager.set(namespace);
+    Query q = new Query(kind);
+    NamespaceManager.set(origNamespace);
+    return q;
+  }
+}
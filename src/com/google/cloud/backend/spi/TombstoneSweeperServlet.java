@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entities;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.cloud.backend.config.StringUtility;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for removing the tombstones of deleted CloudEntities once they are older than
+ * {@link SyncOperations#TOMBSTONE_RETENTION_DAYS}.
+ *
+ * It is intended to be called by Cron, which starts a sweep, and then by Push Task Queue. As
+ * tombstones are kept in the namespaces of their CloudEntities, the first task lists the
+ * namespaces a page at a time and enqueues a sweep of each. A sweep deletes a page of old
+ * tombstones and continues with a cursor until there are none left.
+ */
+public class TombstoneSweeperServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(TombstoneSweeperServlet.class.getName());
+
+  // the number of tombstones or namespaces read by a task
+  static final int PAGE_SIZE = 500;
+
+  // the maximum number of tasks that can be added to a queue at once
+  private static final int MAX_TASKS_PER_ADD = 100;
+
+  private static final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  /**
+   * Handles the GET request from Cron
+   */
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    getQueue().add(createTask());
+  }
+
+  /**
+   * Handles the POST request from Task Queue
+   */
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    String namespace = req.getParameter("namespace");
+    String cursorParameter = req.getParameter("cursor");
+    Cursor cursor = null;
+    if (!StringUtility.isNullOrEmpty(cursorParameter)) {
+      try {
+        cursor = Cursor.fromWebSafeString(cursorParameter);
+      } catch (IllegalArgumentException e) {
+        log.warning("Invalid 'cursor' argument on task queue request. This indicates a bug");
+        return;
+      }
+    }
+    FetchOptions fo = FetchOptions.Builder.withLimit(PAGE_SIZE);
+    if (cursor != null) {
+      fo.startCursor(cursor);
+    }
+
+    if (namespace == null) {
+      listNamespaces(fo);
+    } else {
+      sweep(namespace, fo);
+    }
+  }
+
+  // enqueues a sweep of each namespace of a page
+  private void listNamespaces(FetchOptions fo) {
+    Query q = new Query(Entities.NAMESPACE_METADATA_KIND).setKeysOnly();
+    QueryResultList<Entity> page = datastore.prepare(q).asQueryResultList(fo);
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+    for (Entity e : page) {
+      tasks.add(createTask().param("namespace",
+          Entities.getNamespaceFromNamespaceKey(e.getKey())));
+      if (tasks.size() == MAX_TASKS_PER_ADD) {
+        getQueue().add(tasks);
+        tasks = new ArrayList<TaskOptions>();
+      }
+    }
+    if (page.size() == PAGE_SIZE) {
+      tasks.add(createTask().param("cursor", page.getCursor().toWebSafeString()));
+    }
+    if (!tasks.isEmpty()) {
+      getQueue().add(tasks);
+    }
+    log.info("TombstoneSweeperServlet: namespaces: " + page.size());
+  }
+
+  // deletes a page of old tombstones of the namespace
+  private void sweep(String namespace, FetchOptions fo) {
+    String origNamespace = NamespaceManager.get();
+    NamespaceManager.set(namespace);
+    Query q = new Query(SyncOperations.TOMBSTONE_KIND).setKeysOnly();
+    NamespaceManager.set(origNamespace);
+    q.setFilter(new FilterPredicate(SyncOperations.PROPERTY_DELETED_AT, FilterOperator.LESS_THAN,
+        SyncOperations.getRetentionCutoff()));
+    QueryResultList<Entity> page = datastore.prepare(q).asQueryResultList(fo);
+    List<Key> keys = new ArrayList<Key>();
+    for (Entity e : page) {
+      keys.add(e.getKey());
+    }
+    datastore.delete(keys);
+
+    if (page.size() == PAGE_SIZE) {
+      getQueue().add(createTask().param("namespace", namespace).param("cursor",
+          page.getCursor().toWebSafeString()));
+    }
+    log.info("TombstoneSweeperServlet: namespace: " + namespace + ", deleted: " + keys.size());
+  }
+
+  private static TaskOptions createTask() {
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url("/admin/sync/tombstones/sweep");
+  }
+
+  private static Queue getQueue() {
+    return QueueFactory.getQueue("tombstone-sweep");
+  }
+}
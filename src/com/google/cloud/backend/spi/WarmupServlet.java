@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.backend.spi;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HttpServlet for loading the subscriptions of a new instance before it serves user requests.
+ *
+ * It is called by App Engine with a warmup request. Instances that start without one load their
+ * subscriptions on the first matching task they run, and have their saved entities matched on the
+ * task queue until then.
+ */
+public class WarmupServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+  private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+  /**
+   * Handles the GET request of a warmup
+   */
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    long startTime = System.currentTimeMillis();
+    SubscriptionMatcher.getInstance().load();
+    log.info("WarmupServlet: warmed up in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+}
@@ -11,6 +11,7 @@
   String tokenForConfigSave=ConfigurationServlet.getToken("save");
   String tokenForPush=ConfigurationServlet.getToken("pushmsg");
   String tokenForSubscriptions=ConfigurationServlet.getToken("clearsubs");
+  String tokenForPropertyUsage=ConfigurationServlet.getToken("propusage");
 %>
 <script type="text/javascript">
 var fileReader = new FileReader();
@@ -201,6 +202,20 @@ var onClearSubs = function() {
     });
 };
 
+var onPropertyUsage = function() {
+  var data = {};
+  data.op = 'propusage';
+  data.token = "<%=tokenForPropertyUsage%>"
+
+  $.ajax({
+    "url": "cconf",
+    "data": data,
+    "dataType" : "json",
+    }).done( function (data) {
+      $('#propertyUsage').text(JSON.stringify(data.kinds, null, 2));
+    });
+};
+
 var toggle = function(id, value, name) {
   if ($('input:radio[name=' + name + ']:checked').val() == value) {
     $('#' + id).show();
@@ -457,6 +472,38 @@ var toggle = function(id, value, name) {
             </button>
           </td>
         </tr>
+
+        <tr>
+          <td colspan="2"><hr></td>
+        </tr>
+
+        <!-- Property usage -->
+        <tr>
+          <td class="section-label-col">
+            <div style="text-align: right">Property usage</div>
+          </td>
+          <td class="input-col">
+            <div class="subtext">
+              <p>
+                Every indexed property adds index writes to each save. Use the
+                button below to list the properties used in queries and the
+                indexed properties that no query has used, which can be
+                stored unindexed with the indexedProperties setting.
+              </p>
+              <p>
+                Entities saved while a property or path was unindexed are
+                missing from its index. When one becomes indexed, the
+                entities of its kind are backfilled in the background, and
+                queries on it are rejected until the backfill has finished.
+                The names still being backfilled are listed as "backfilling".
+              </p>
+            </div>
+            <button type="button" class="btn active" onclick="onPropertyUsage()">
+              Show Property Usage
+            </button>
+            <pre id="propertyUsage"></pre>
+          </td>
+        </tr>
       </table>
     </form>
   </div>